@@ -0,0 +1,115 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares one odometry update, and one odometry update followed by a delayed vision measurement,
+ * between {@link DrivePoseEstimator} and WPILib's SwerveDrivePoseEstimator. Both run with a full
+ * history buffer, as they would on the robot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DrivePoseEstimatorBenchmark {
+  private static final double FREQUENCY = 250.0;
+  private static final double DT = 1.0 / FREQUENCY;
+  private static final double VISION_LATENCY = 0.05;
+  private static final Translation2d[] MODULE_TRANSLATIONS =
+      new Translation2d[] {
+        new Translation2d(0.3, 0.3),
+        new Translation2d(0.3, -0.3),
+        new Translation2d(-0.3, 0.3),
+        new Translation2d(-0.3, -0.3)
+      };
+
+  private SwerveDrivePoseEstimator reference;
+  private DrivePoseEstimator estimator;
+  private final SwerveModulePosition[] positions = new SwerveModulePosition[4];
+  private final Pose2d visionPose = new Pose2d(1.0, 1.0, new Rotation2d());
+  private double time;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < 4; i++) {
+      positions[i] = new SwerveModulePosition(0.0, Rotation2d.fromDegrees(10.0));
+    }
+    reference =
+        new SwerveDrivePoseEstimator(
+            new SwerveDriveKinematics(MODULE_TRANSLATIONS),
+            new Rotation2d(),
+            positions,
+            new Pose2d());
+    estimator =
+        new DrivePoseEstimator(
+            MODULE_TRANSLATIONS, FREQUENCY, new Rotation2d(), positions, new Pose2d());
+
+    // Fill the history so vision measurements have to replay through a full buffer
+    time = 0.0;
+    for (int i = 0; i < 2.0 * FREQUENCY; i++) {
+      advance();
+      reference.updateWithTime(time, new Rotation2d(time), positions);
+      estimator.updateWithTime(time, new Rotation2d(time), positions);
+    }
+  }
+
+  private void advance() {
+    time += DT;
+    for (int i = 0; i < 4; i++) {
+      positions[i].distanceMeters += 2.0 * DT;
+    }
+  }
+
+  @Benchmark
+  public Pose2d referenceUpdate() {
+    advance();
+    return reference.updateWithTime(time, new Rotation2d(time), positions);
+  }
+
+  @Benchmark
+  public Pose2d estimatorUpdate() {
+    advance();
+    return estimator.updateWithTime(time, new Rotation2d(time), positions);
+  }
+
+  @Benchmark
+  public Pose2d referenceUpdateWithVision() {
+    advance();
+    reference.updateWithTime(time, new Rotation2d(time), positions);
+    reference.addVisionMeasurement(visionPose, time - VISION_LATENCY);
+    return reference.getEstimatedPosition();
+  }
+
+  @Benchmark
+  public Pose2d estimatorUpdateWithVision() {
+    advance();
+    estimator.updateWithTime(time, new Rotation2d(time), positions);
+    estimator.addVisionMeasurement(visionPose, time - VISION_LATENCY);
+    return estimator.getEstimatedPosition();
+  }
+}
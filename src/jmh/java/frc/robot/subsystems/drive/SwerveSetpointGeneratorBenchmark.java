@@ -0,0 +1,91 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static edu.wpi.first.units.Units.MetersPerSecond;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import edu.wpi.first.math.system.plant.DCMotor;
+import frc.robot.generated.TunerConstants;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Times one {@link SwerveSetpointGenerator#generate} call, both while holding a steady command and
+ * while the command jumps between large random steps every loop (the worst case, since every call
+ * then searches for the feasible step).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SwerveSetpointGeneratorBenchmark {
+  private static final double DT = 0.02;
+  private static final int STEP_COUNT = 1024;
+
+  private SwerveSetpointGenerator generator;
+  private final ChassisSpeeds steadySpeeds = new ChassisSpeeds(2.0, 1.0, 0.5);
+  private final ChassisSpeeds[] steps = new ChassisSpeeds[STEP_COUNT];
+  private int stepIndex = 0;
+
+  @Setup
+  public void setup() {
+    double maxSpeed = TunerConstants.kSpeedAt12Volts.in(MetersPerSecond);
+    generator =
+        new SwerveSetpointGenerator(
+            new Translation2d[] {
+              new Translation2d(
+                  TunerConstants.FrontLeft.LocationX, TunerConstants.FrontLeft.LocationY),
+              new Translation2d(
+                  TunerConstants.FrontRight.LocationX, TunerConstants.FrontRight.LocationY),
+              new Translation2d(
+                  TunerConstants.BackLeft.LocationX, TunerConstants.BackLeft.LocationY),
+              new Translation2d(
+                  TunerConstants.BackRight.LocationX, TunerConstants.BackRight.LocationY)
+            },
+            TunerConstants.FrontLeft,
+            maxSpeed,
+            DCMotor.getKrakenX60Foc(1),
+            DCMotor.getKrakenX60Foc(1),
+            Drive.ROBOT_MASS_KG,
+            Drive.WHEEL_COF);
+    Random random = new Random(1468);
+    for (int i = 0; i < STEP_COUNT; i++) {
+      steps[i] =
+          new ChassisSpeeds(
+              (random.nextDouble() * 2.0 - 1.0) * maxSpeed,
+              (random.nextDouble() * 2.0 - 1.0) * maxSpeed,
+              (random.nextDouble() * 2.0 - 1.0) * 12.0);
+    }
+  }
+
+  @Benchmark
+  public SwerveModuleState[] steadyCommand() {
+    return generator.generate(steadySpeeds, DT);
+  }
+
+  @Benchmark
+  public SwerveModuleState[] largeSteps() {
+    stepIndex = (stepIndex + 1) & (STEP_COUNT - 1);
+    return generator.generate(steps[stepIndex], DT);
+  }
+}
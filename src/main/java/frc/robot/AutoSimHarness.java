@@ -0,0 +1,195 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot;
+
+import com.pathplanner.lib.auto.AutoBuilder;
+import com.pathplanner.lib.commands.PathPlannerAuto;
+import com.pathplanner.lib.util.PathPlannerLogging;
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.simulation.DriverStationSim;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import edu.wpi.first.wpilibj2.command.Command;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+import frc.robot.subsystems.drive.FaultProfile;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs every PathPlanner auto headless in simulation, faster than real time, and reports whether
+ * each one finished, how long it took, how closely the simulated robot tracked the path, and how
+ * closely the pose estimate tracked the simulated robot.
+ *
+ * <p>Each auto runs in its own JVM worker, so autos are isolated from each other's static state
+ * (the command scheduler, AutoBuilder and HAL) and run in parallel. A worker builds {@link
+ * RobotContainer} in SIM mode, enables autonomous, and steps the command scheduler and the physics
+ * simulation with the sim clock paused between loops, so no loop waits for wall-clock time.
+ *
+ * <p>Every auto can also be run under several {@link FaultProfile}s, to compare the pose error
+ * with injected CAN latency, dropped frames and disconnects against a clean bus.
+ *
+ * <p>Run with {@code ./gradlew autoSim}, optionally with {@code --args="--workers N"}, {@code
+ * --args="--faults none,typical,congested,intermittent"} or the names of the autos to run. Exits
+ * with a nonzero status if any auto did not finish.
+ */
+public final class AutoSimHarness {
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  private static final double TIMEOUT_SECS = 20.0; // Autonomous period plus margin
+  private static final String RESULT_PREFIX = "AUTO_RESULT\t";
+
+  private AutoSimHarness() {}
+
+  public static void main(String... args) throws Exception {
+    if (args.length == 2 && args[0].equals("--worker")) {
+      System.out.println(RESULT_PREFIX + runAuto(args[1]));
+      System.exit(0);
+    }
+
+    // Parse the worker count, fault profiles, and the autos to run (all by default)
+    int workers = Math.max(Runtime.getRuntime().availableProcessors() / 2, 1);
+    List<String> faultProfiles = List.of(FaultProfile.NONE.getName());
+    List<String> autoNames = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--workers") && i + 1 < args.length) {
+        workers = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--faults") && i + 1 < args.length) {
+        faultProfiles = Arrays.asList(args[++i].split(","));
+        faultProfiles.forEach(FaultProfile::forName); // Fail early on unknown profiles
+      } else {
+        autoNames.add(args[i]);
+      }
+    }
+    if (autoNames.isEmpty()) {
+      autoNames.addAll(AutoBuilder.getAllAutoNames());
+    }
+
+    // Run every auto under every fault profile in a worker JVM
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    List<Future<String>> results = new ArrayList<>();
+    for (String autoName : autoNames) {
+      for (String faultProfile : faultProfiles) {
+        results.add(executor.submit(() -> runWorker(autoName, faultProfile)));
+      }
+    }
+    boolean allPassed = true;
+    System.out.println(
+        "Faults\tAuto\tFinished\tTimeSecs\tMaxErrorMeters\tRmsErrorMeters"
+            + "\tMaxEstimateErrorMeters\tRmsEstimateErrorMeters");
+    for (Future<String> result : results) {
+      String line = result.get();
+      System.out.println(line);
+      allPassed &= line.split("\t")[2].equals("true");
+    }
+    executor.shutdown();
+    System.out.printf(
+        "Ran %d autos under %d fault profiles with %d workers in %.1f s%n",
+        autoNames.size(), faultProfiles.size(), workers, (System.nanoTime() - start) / 1e9);
+    System.exit(allPassed ? 0 : 1);
+  }
+
+  /** Runs one auto in a new JVM with the same classpath and native libraries. */
+  private static String runWorker(String autoName, String faultProfile) throws Exception {
+    String java =
+        System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    Process process =
+        new ProcessBuilder(
+                java,
+                "-cp",
+                System.getProperty("java.class.path"),
+                "-Djava.library.path=" + System.getProperty("java.library.path"),
+                "-DsimFaults=" + faultProfile,
+                AutoSimHarness.class.getName(),
+                "--worker",
+                autoName)
+            .redirectErrorStream(true)
+            .start();
+    String result = autoName + "\tfalse\tNaN\tNaN\tNaN\tNaN\tNaN";
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(RESULT_PREFIX)) {
+          result = line.substring(RESULT_PREFIX.length());
+        }
+      }
+    }
+    process.waitFor();
+    return faultProfile + "\t" + result;
+  }
+
+  /** Runs one auto in this JVM, and returns its tab-separated result. */
+  private static String runAuto(String autoName) {
+    HAL.initialize(500, 0);
+    SimHooks.pauseTiming();
+    DriverStationSim.setDsAttached(true);
+    DriverStationSim.setAutonomous(true);
+    DriverStationSim.setEnabled(true);
+    DriverStationSim.notifyNewData();
+    DriverStation.refreshData();
+
+    // Track the path target against the ground truth (replaces the logging callback of Drive)
+    RobotContainer robotContainer = new RobotContainer();
+    Pose2d[] targetPose = new Pose2d[] {null};
+    PathPlannerLogging.setLogTargetPoseCallback(pose -> targetPose[0] = pose);
+
+    Command auto = new PathPlannerAuto(autoName);
+    CommandScheduler.getInstance().schedule(auto);
+    double time = 0.0;
+    double maxError = 0.0;
+    double errorSquaredSum = 0.0;
+    int errorCount = 0;
+    double maxEstimateError = 0.0;
+    double estimateErrorSquaredSum = 0.0;
+    while (auto.isScheduled() && time < TIMEOUT_SECS) {
+      DriverStation.refreshData();
+      CommandScheduler.getInstance().run();
+      if (targetPose[0] != null) {
+        double error =
+            targetPose[0]
+                .getTranslation()
+                .getDistance(robotContainer.getSimulatedPose().getTranslation());
+        maxError = Math.max(maxError, error);
+        errorSquaredSum += error * error;
+        errorCount++;
+      }
+      double estimateError =
+          robotContainer
+              .getEstimatedPose()
+              .getTranslation()
+              .getDistance(robotContainer.getSimulatedPose().getTranslation());
+      maxEstimateError = Math.max(maxEstimateError, estimateError);
+      estimateErrorSquaredSum += estimateError * estimateError;
+      robotContainer.updateSimulation();
+      SimHooks.stepTiming(LOOP_PERIOD_SECS);
+      time += LOOP_PERIOD_SECS;
+    }
+    boolean finished = !auto.isScheduled();
+    double rmsError = errorCount > 0 ? Math.sqrt(errorSquaredSum / errorCount) : 0.0;
+    int loopCount = (int) Math.round(time / LOOP_PERIOD_SECS);
+    double rmsEstimateError =
+        loopCount > 0 ? Math.sqrt(estimateErrorSquaredSum / loopCount) : 0.0;
+    return String.format(
+        "%s\t%b\t%.2f\t%.3f\t%.3f\t%.3f\t%.3f",
+        autoName, finished, time, maxError, rmsError, maxEstimateError, rmsEstimateError);
+  }
+}
@@ -13,6 +13,8 @@
 
 package frc.robot;
 
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+import edu.wpi.first.apriltag.AprilTagFields;
 import edu.wpi.first.wpilibj.RobotBase;
 
 /**
@@ -24,6 +26,10 @@ public final class Constants {
   public static final Mode simMode = Mode.SIM;
   public static final Mode currentMode = RobotBase.isReal() ? Mode.REAL : simMode;
 
+  /** The field of the current game, shared by vision and the simulated field walls. */
+  public static final AprilTagFieldLayout aprilTagLayout =
+      AprilTagFields.kDefaultField.loadAprilTagLayoutField();
+
   public static enum Mode {
     /** Running on a real robot. */
     REAL,
@@ -28,12 +28,18 @@ import frc.robot.commands.DriveToNoteCommand;
 import frc.robot.commands.AimAtAprilTagCommand;
 import frc.robot.generated.TunerConstants;
 import frc.robot.subsystems.VisionSubsystem;
+import frc.robot.subsystems.drive.ChassisSim;
 import frc.robot.subsystems.drive.Drive;
+import frc.robot.subsystems.drive.FaultProfile;
 import frc.robot.subsystems.drive.GyroIO;
+import frc.robot.subsystems.drive.GyroIOFused;
+import frc.robot.subsystems.drive.GyroIONavX;
 import frc.robot.subsystems.drive.GyroIOPigeon2;
+import frc.robot.subsystems.drive.GyroIOSim;
 import frc.robot.subsystems.drive.ModuleIO;
 import frc.robot.subsystems.drive.ModuleIOSim;
 import frc.robot.subsystems.drive.ModuleIOTalonFX;
+import org.littletonrobotics.junction.Logger;
 import org.littletonrobotics.junction.networktables.LoggedDashboardChooser;
 
 /**
@@ -45,8 +51,17 @@ import org.littletonrobotics.junction.networktables.LoggedDashboardChooser;
 public class RobotContainer {
   // Subsystems
   private final Drive drive;
+  // Fuse the Pigeon 2 with the NavX as backup. Requires main-loop odometry (the default in Drive),
+  // since the fused gyro has no yaw queue on the odometry thread.
+  private static final boolean USE_DUAL_GYRO = true;
 
-  final VisionSubsystem s_Vision = new VisionSubsystem();
+  // Simulation
+  private static final Pose2d SIM_START_POSE = new Pose2d(3.0, 3.0, new Rotation2d());
+  private static final FaultProfile SIM_FAULTS =
+      FaultProfile.forName(System.getProperty("simFaults", FaultProfile.NONE.getName()));
+  private ChassisSim chassisSim = null;
+
+  final VisionSubsystem s_Vision;
 
   // Controller
   final Joystick driverLeftJoystick = new Joystick(0);
@@ -65,7 +80,9 @@ public class RobotContainer {
         // Real robot, instantiate hardware IO implementations
         drive =
             new Drive(
-                new GyroIOPigeon2(),
+                USE_DUAL_GYRO
+                    ? new GyroIOFused(new GyroIOPigeon2(), new GyroIONavX())
+                    : new GyroIOPigeon2(),
                 new ModuleIOTalonFX(TunerConstants.FrontLeft),
                 new ModuleIOTalonFX(TunerConstants.FrontRight),
                 new ModuleIOTalonFX(TunerConstants.BackLeft),
@@ -73,14 +90,18 @@ public class RobotContainer {
         break;
 
       case SIM:
-        // Sim robot, instantiate physics sim IO implementations
+        // Sim robot, instantiate physics sim IO implementations (with the CAN faults selected by
+        // -DsimFaults, if any)
+        chassisSim = new ChassisSim(SIM_START_POSE);
         drive =
             new Drive(
-                new GyroIO() {},
-                new ModuleIOSim(TunerConstants.FrontLeft),
-                new ModuleIOSim(TunerConstants.FrontRight),
-                new ModuleIOSim(TunerConstants.BackLeft),
-                new ModuleIOSim(TunerConstants.BackRight));
+                SIM_FAULTS.wrap(new GyroIOSim(chassisSim), 0),
+                SIM_FAULTS.wrap(new ModuleIOSim(TunerConstants.FrontLeft, chassisSim), 1),
+                SIM_FAULTS.wrap(new ModuleIOSim(TunerConstants.FrontRight, chassisSim), 2),
+                SIM_FAULTS.wrap(new ModuleIOSim(TunerConstants.BackLeft, chassisSim), 3),
+                SIM_FAULTS.wrap(new ModuleIOSim(TunerConstants.BackRight, chassisSim), 4),
+                chassisSim::resetPose);
+        drive.setPose(SIM_START_POSE);
         break;
 
       default:
@@ -95,6 +116,9 @@ public class RobotContainer {
         break;
     }
 
+    // Fuse AprilTag pose estimates into the drive pose estimate
+    s_Vision = new VisionSubsystem(drive::addVisionMeasurement);
+
     // Set up auto routines
     autoChooser = new LoggedDashboardChooser<>("Auto Choices", AutoBuilder.buildAutoChooser());
 
@@ -170,4 +194,35 @@ public class RobotContainer {
   public Command getAutonomousCommand() {
     return autoChooser.get();
   }
+
+  /** Returns the true pose of the simulated robot, or the estimated pose outside of sim. */
+  Pose2d getSimulatedPose() {
+    return chassisSim != null ? chassisSim.getPose() : drive.getPose();
+  }
+
+  /** Returns the estimated pose of the robot. */
+  Pose2d getEstimatedPose() {
+    return drive.getPose();
+  }
+
+  /**
+   * Logs the ground truth of the simulation and the estimator error against it, then advances the
+   * physics simulation. The estimate was updated this loop from the samples of the last step, so
+   * it is compared to the ground truth before stepping.
+   */
+  public void updateSimulation() {
+    if (chassisSim == null) return;
+    Pose2d truePose = chassisSim.getPose();
+    Pose2d estimatedPose = drive.getPose();
+    Logger.recordOutput("Odometry/GroundTruth", truePose);
+    Logger.recordOutput("Odometry/GroundTruthSpeeds", chassisSim.getFieldRelativeSpeeds());
+    Logger.recordOutput(
+        "Odometry/GroundTruthErrorMeters",
+        truePose.getTranslation().getDistance(estimatedPose.getTranslation()));
+    Logger.recordOutput(
+        "Odometry/GroundTruthErrorRad",
+        Math.abs(truePose.getRotation().minus(estimatedPose.getRotation()).getRadians()));
+    Logger.recordOutput("Odometry/SimFaultProfile", SIM_FAULTS.getName());
+    chassisSim.update();
+  }
 }
@@ -1,5 +1,6 @@
 package frc.robot.commands;
 
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.wpilibj.Joystick;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.Command;
@@ -37,8 +38,15 @@ public class AimAtAprilTagCommand extends Command {
         double ySpeed = -driverLeftJoystick.getX();
 
         if (m_vision.specificAprilTagDetected(aprilTagId)) {
-            if ((Math.abs(m_vision.getSpecificAprilTagYaw(aprilTagId)) - Math.abs(targetYaw)) > yawTolerance) {
-                if (m_vision.getSpecificAprilTagYaw(aprilTagId) < targetYaw) {
+            // The yaw was measured when the frame was captured; correct it for how far the robot has turned since
+            double rotationSinceCapture = MathUtil.angleModulus(
+                m_drive.getRotation().getRadians()
+                    - m_drive.getRotationRadAt(m_vision.getSpecificAprilTagTimestamp(aprilTagId)));
+            double tagYaw = m_vision.getSpecificAprilTagYaw(aprilTagId) + Math.toDegrees(rotationSinceCapture);
+            SmartDashboard.putNumber("AimAtAprilTag Compensated Yaw", tagYaw);
+
+            if ((Math.abs(tagYaw) - Math.abs(targetYaw)) > yawTolerance) {
+                if (tagYaw < targetYaw) {
                     // Rotate CCW
                     SmartDashboard.putString("AimAtAprilTag Status", "CCW");
                     m_drive.driveWithSpeeds(xSpeed, ySpeed, rotationSpeed, true); 
@@ -1,18 +1,29 @@
 package frc.robot.subsystems;
 
 import edu.wpi.first.apriltag.AprilTagFieldLayout;
-import edu.wpi.first.apriltag.AprilTagFields;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
 import edu.wpi.first.math.geometry.Rotation3d;
 import edu.wpi.first.math.geometry.Transform3d;
 import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
+import frc.robot.Constants;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import org.littletonrobotics.junction.AutoLog;
+import org.littletonrobotics.junction.Logger;
+import org.photonvision.EstimatedRobotPose;
 import org.photonvision.PhotonCamera;
 import org.photonvision.PhotonPoseEstimator;
 import org.photonvision.PhotonPoseEstimator.PoseStrategy;
+import org.photonvision.targeting.PhotonPipelineResult;
 import org.photonvision.targeting.PhotonTrackedTarget;
 
 public class VisionSubsystem extends SubsystemBase{
@@ -24,10 +35,35 @@ public class VisionSubsystem extends SubsystemBase{
     private final Transform3d robotToAprilTagCamera = new Transform3d(new Translation3d(0.2176272, 0.0882396, 0.2332736), new Rotation3d(0,-0.294524311,-0.078644536));     // TODO: Change values when moving camera; 1/3/25: X: 8.568 in, Y: 3.474 in, Z: 9.184 in, Yaw: -4.506 degrees, Pitch = -16.875 degrees, Roll: 0
     // private final Transform3d robotToAprilTagCamera = new Transform3d(new Translation3d(0.5, 0.0, 0.5), new Rotation3d(0,0,0));     // EXAMPLE: Cam mounted facing forward, half a meter forward of center, half a meter up from center
     private final PoseStrategy poseStrategy = PoseStrategy.MULTI_TAG_PNP_ON_COPROCESSOR;    // TODO: Ensure that your camera is calibrated and 3D mode is enabled. Read https://docs.photonvision.org/en/v2025.0.0-beta-8/docs/apriltag-pipelines/multitag.html#multitag-localization
-    private final AprilTagFieldLayout aprilTagFieldLayout = AprilTagFields.k2024Crescendo.loadAprilTagLayoutField();    // TODO: // The field from AprilTagFields will be different depending on the game.
+    private final AprilTagFieldLayout aprilTagFieldLayout = Constants.aprilTagLayout;    // Shared with the sim so its field walls match the bounds filter below
     
     PhotonPoseEstimator photonPoseEstimator = new PhotonPoseEstimator(aprilTagFieldLayout, poseStrategy, robotToAprilTagCamera);
 
+    // Vision pose filtering and trust, tune against logged matches
+    private static final double MAX_AMBIGUITY = 0.3;            // Single-tag estimates above this are rejected
+    private static final double MAX_Z_ERROR = 0.75;             // Meters off the floor before an estimate is rejected
+    private static final double LINEAR_STD_DEV_BASELINE = 0.02; // Meters, for one tag at one meter
+    private static final double ANGULAR_STD_DEV_BASELINE = 0.06; // Radians, for one tag at one meter
+
+    /** Receives the accepted vision pose estimates, e.g. Drive::addVisionMeasurement. */
+    @FunctionalInterface
+    public static interface VisionConsumer {
+        void accept(Pose2d visionRobotPoseMeters, double timestampSeconds, Matrix<N3, N1> visionMeasurementStdDevs);
+    }
+
+    /** Pose estimates from the AprilTag camera since the last cycle, logged as inputs so they can be replayed. */
+    @AutoLog
+    public static class AprilTagCameraInputs {
+        public double[] timestamps = new double[] {};
+        public Pose3d[] robotPoses = new Pose3d[] {};
+        public double[] ambiguities = new double[] {};
+        public int[] tagCounts = new int[] {};
+        public double[] averageTagDistances = new double[] {};
+    }
+
+    private final VisionConsumer visionConsumer;
+    private final AprilTagCameraInputsAutoLogged aprilTagCameraInputs = new AprilTagCameraInputsAutoLogged();
+
     // Initialize variables (default if aprilTagResults is empty)
     private boolean aprilTagHasTargets = false;
     private boolean multipleAprilTags = false;
@@ -45,9 +81,11 @@ public class VisionSubsystem extends SubsystemBase{
 
     private boolean aprilTag7Detected = false; 
     private double aprilTag7Yaw = 0;
+    private double aprilTag7TimestampSeconds = 0;   // Capture time of the frame aprilTag7Yaw came from
 
-    public VisionSubsystem() {
-        // Additional initialization if needed
+    public VisionSubsystem(VisionConsumer visionConsumer) {
+        this.visionConsumer = visionConsumer;
+        photonPoseEstimator.setMultiTagFallbackStrategy(PoseStrategy.LOWEST_AMBIGUITY);
     }
 
     @Override
@@ -56,6 +94,12 @@ public class VisionSubsystem extends SubsystemBase{
 
         // Read in relevant data from the Camera
         var aprilTagResults = aprilTagCamera.getAllUnreadResults();
+
+        // Estimate the robot pose from every new frame, and fuse the good estimates into odometry
+        updatePoseEstimates(aprilTagResults);
+        Logger.processInputs("Vision/AprilTagCamera", aprilTagCameraInputs);
+        fusePoseEstimates();
+
         if (!aprilTagResults.isEmpty()) {
             // Camera processed a new frame since last
             // Get the last one in the list.
@@ -71,6 +115,7 @@ public class VisionSubsystem extends SubsystemBase{
                     if (target.getFiducialId() == 7) {
                         aprilTag7Detected = true;
                         aprilTag7Yaw = target.getYaw();
+                        aprilTag7TimestampSeconds = aprilTagResult.getTimestampSeconds();
                     }
                 }
 
@@ -159,6 +204,73 @@ public class VisionSubsystem extends SubsystemBase{
         SmartDashboard.putNumber("Note Area", noteTargetArea);
     }
 
+    /** Runs every unread AprilTag result through the pose estimator, oldest first. */
+    private void updatePoseEstimates(List<PhotonPipelineResult> results) {
+        List<EstimatedRobotPose> estimates = new ArrayList<>();
+        for (var result : results) {
+            photonPoseEstimator.update(result).ifPresent(estimates::add);
+        }
+
+        int count = estimates.size();
+        aprilTagCameraInputs.timestamps = new double[count];
+        aprilTagCameraInputs.robotPoses = new Pose3d[count];
+        aprilTagCameraInputs.ambiguities = new double[count];
+        aprilTagCameraInputs.tagCounts = new int[count];
+        aprilTagCameraInputs.averageTagDistances = new double[count];
+        for (int i = 0; i < count; i++) {
+            var estimate = estimates.get(i);
+            double totalTagDistance = 0.0;
+            for (var target : estimate.targetsUsed) {
+                totalTagDistance += target.getBestCameraToTarget().getTranslation().getNorm();
+            }
+            int tagCount = estimate.targetsUsed.size();
+            aprilTagCameraInputs.timestamps[i] = estimate.timestampSeconds;
+            aprilTagCameraInputs.robotPoses[i] = estimate.estimatedPose;
+            // Multi-tag solves are unambiguous, a single tag can flip between two solutions
+            aprilTagCameraInputs.ambiguities[i] = tagCount == 1 ? estimate.targetsUsed.get(0).getPoseAmbiguity() : 0.0;
+            aprilTagCameraInputs.tagCounts[i] = tagCount;
+            aprilTagCameraInputs.averageTagDistances[i] = tagCount > 0 ? totalTagDistance / tagCount : 0.0;
+        }
+    }
+
+    /**
+     * Rejects implausible pose estimates, then passes the rest to the vision consumer with their capture
+     * timestamps. Trust falls off with the square of the tag distance and rises with the tag count, and the
+     * heading from a single tag is not trusted at all.
+     */
+    private void fusePoseEstimates() {
+        List<Pose3d> acceptedPoses = new ArrayList<>();
+        List<Pose3d> rejectedPoses = new ArrayList<>();
+        for (int i = 0; i < aprilTagCameraInputs.timestamps.length; i++) {
+            Pose3d robotPose = aprilTagCameraInputs.robotPoses[i];
+            int tagCount = aprilTagCameraInputs.tagCounts[i];
+            boolean rejected =
+                tagCount == 0
+                    || (tagCount == 1 && aprilTagCameraInputs.ambiguities[i] > MAX_AMBIGUITY)
+                    || Math.abs(robotPose.getZ()) > MAX_Z_ERROR
+                    || robotPose.getX() < 0.0
+                    || robotPose.getX() > aprilTagFieldLayout.getFieldLength()
+                    || robotPose.getY() < 0.0
+                    || robotPose.getY() > aprilTagFieldLayout.getFieldWidth();
+            if (rejected) {
+                rejectedPoses.add(robotPose);
+                continue;
+            }
+            acceptedPoses.add(robotPose);
+
+            double stdDevFactor = Math.pow(aprilTagCameraInputs.averageTagDistances[i], 2.0) / tagCount;
+            double linearStdDev = LINEAR_STD_DEV_BASELINE * stdDevFactor;
+            double angularStdDev = tagCount > 1 ? ANGULAR_STD_DEV_BASELINE * stdDevFactor : Double.POSITIVE_INFINITY;
+            visionConsumer.accept(
+                robotPose.toPose2d(),
+                aprilTagCameraInputs.timestamps[i],
+                VecBuilder.fill(linearStdDev, linearStdDev, angularStdDev));
+        }
+
+        Logger.recordOutput("Vision/AprilTagCamera/RobotPosesAccepted", acceptedPoses.toArray(new Pose3d[0]));
+        Logger.recordOutput("Vision/AprilTagCamera/RobotPosesRejected", rejectedPoses.toArray(new Pose3d[0]));
+    }
+
     // Getter methods to access target data
     public boolean aprilTagDectected() {
         return aprilTagHasTargets;
@@ -175,6 +287,11 @@ public class VisionSubsystem extends SubsystemBase{
         return aprilTag7Yaw;
     }
 
+    // Capture time (FPGA seconds) of the frame that getSpecificAprilTagYaw came from, for latency compensation
+    public double getSpecificAprilTagTimestamp (int aprilTagId) {
+        return aprilTag7TimestampSeconds;
+    }
+
     public boolean noteDetected() {
         return noteHasTargets;
     }
@@ -0,0 +1,210 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.wpilibj.Timer;
+import frc.robot.Constants;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rigid-body simulation of the whole chassis, driven by the {@link ModuleIOSim} instances attached
+ * to it and read by {@link GyroIOSim}.
+ *
+ * <p>Each sub-step, every module applies a drive force along its wheel, limited by its share of
+ * the wheel friction, and a lateral friction force that resists sideways sliding. The sum of the
+ * forces and their torques accelerates the chassis according to its mass and moment of inertia.
+ * The chassis footprint is kept inside the field walls; hitting a wall stops the motion into it.
+ *
+ * <p>Call {@link #update()} once per loop after the outputs are set (from simulationPeriodic), and
+ * the IOs report the samples of the last update on their next read.
+ */
+public class ChassisSim {
+  private static final double GRAVITY = 9.81;
+  private static final double BUMPER_MARGIN = 0.1; // Meters beyond the module locations
+  private static final double LATERAL_DAMPING = 0.5; // Fraction of the sliding removed per step
+
+  private final List<ModuleIOSim> modules = new ArrayList<>();
+  private final List<double[]> moduleLocations = new ArrayList<>();
+  private final double fieldLength;
+  private final double fieldWidth;
+  private double halfLength = BUMPER_MARGIN;
+  private double halfWidth = BUMPER_MARGIN;
+
+  // Chassis state, in the field frame
+  private double x;
+  private double y;
+  private double theta;
+  private double vx = 0.0;
+  private double vy = 0.0;
+  private double omega = 0.0;
+
+  // Heading samples of the last update, for the gyro
+  private final double[] timestampSamples = new double[ModuleIOSim.SUBSTEP_COUNT];
+  private final double[] yawSamples = new double[ModuleIOSim.SUBSTEP_COUNT];
+  private int sampleCount = 0;
+
+  /** Creates a chassis sim at the given starting pose. */
+  public ChassisSim(Pose2d initialPose) {
+    fieldLength = Constants.aprilTagLayout.getFieldLength();
+    fieldWidth = Constants.aprilTagLayout.getFieldWidth();
+    resetPose(initialPose);
+  }
+
+  /** Attaches a module at the given location on the robot. Called by the module IO. */
+  void addModule(ModuleIOSim module, double locationX, double locationY) {
+    modules.add(module);
+    moduleLocations.add(new double[] {locationX, locationY});
+    halfLength = Math.max(halfLength, Math.abs(locationX) + BUMPER_MARGIN);
+    halfWidth = Math.max(halfWidth, Math.abs(locationY) + BUMPER_MARGIN);
+  }
+
+  /** Moves the robot to the given pose and stops it. */
+  public void resetPose(Pose2d pose) {
+    x = pose.getX();
+    y = pose.getY();
+    theta = pose.getRotation().getRadians();
+    vx = 0.0;
+    vy = 0.0;
+    omega = 0.0;
+  }
+
+  /** Advances the simulation over one loop, in the same sub-steps as the modules. */
+  public void update() {
+    double dt = ModuleIOSim.SUBSTEP_PERIOD_SECS;
+    int moduleCount = modules.size();
+    double maxForce = Drive.WHEEL_COF * Drive.ROBOT_MASS_KG * GRAVITY / moduleCount;
+    double massPerModule = Drive.ROBOT_MASS_KG / moduleCount;
+    double loopTimestamp = Timer.getFPGATimestamp();
+    for (int step = 0; step < ModuleIOSim.SUBSTEP_COUNT; step++) {
+      double cos = Math.cos(theta);
+      double sin = Math.sin(theta);
+      double robotVx = vx * cos + vy * sin;
+      double robotVy = -vx * sin + vy * cos;
+
+      // Sum the wheel forces and torques, in the robot frame
+      double forceX = 0.0;
+      double forceY = 0.0;
+      double torque = 0.0;
+      for (int i = 0; i < moduleCount; i++) {
+        ModuleIOSim module = modules.get(i);
+        double[] location = moduleLocations.get(i);
+        module.stepControl(dt);
+
+        // Ground velocity at the module, along and across the wheel
+        double moduleVx = robotVx - omega * location[1];
+        double moduleVy = robotVy + omega * location[0];
+        double angle = module.getTurnAngleRad();
+        double wheelCos = Math.cos(angle);
+        double wheelSin = Math.sin(angle);
+        double longitudinalSpeed = moduleVx * wheelCos + moduleVy * wheelSin;
+        double lateralSpeed = -moduleVx * wheelSin + moduleVy * wheelCos;
+
+        // Drive force from the wheel, and friction against sliding sideways (within what the
+        // friction circle has left)
+        double longitudinalForce = module.stepDrive(longitudinalSpeed, maxForce, dt);
+        double maxLateralForce =
+            Math.sqrt(Math.max(maxForce * maxForce - longitudinalForce * longitudinalForce, 0.0));
+        double lateralForce =
+            MathUtil.clamp(
+                -LATERAL_DAMPING * lateralSpeed * massPerModule / dt,
+                -maxLateralForce,
+                maxLateralForce);
+
+        double moduleForceX = longitudinalForce * wheelCos - lateralForce * wheelSin;
+        double moduleForceY = longitudinalForce * wheelSin + lateralForce * wheelCos;
+        forceX += moduleForceX;
+        forceY += moduleForceY;
+        torque += location[0] * moduleForceY - location[1] * moduleForceX;
+      }
+
+      // Integrate the chassis motion in the field frame
+      vx += (forceX * cos - forceY * sin) / Drive.ROBOT_MASS_KG * dt;
+      vy += (forceX * sin + forceY * cos) / Drive.ROBOT_MASS_KG * dt;
+      omega += torque / Drive.ROBOT_MOI * dt;
+      x += vx * dt;
+      y += vy * dt;
+      theta = MathUtil.angleModulus(theta + omega * dt);
+      collideWithWalls();
+
+      // Record samples at the end of the sub-step
+      double timestamp = loopTimestamp - (ModuleIOSim.SUBSTEP_COUNT - 1 - step) * dt;
+      for (int i = 0; i < moduleCount; i++) {
+        modules.get(i).recordSample(step, timestamp);
+      }
+      timestampSamples[step] = timestamp;
+      yawSamples[step] = theta;
+    }
+    sampleCount = ModuleIOSim.SUBSTEP_COUNT;
+  }
+
+  /** Keeps the rotated chassis footprint inside the field, stopping motion into a wall. */
+  private void collideWithWalls() {
+    double cos = Math.abs(Math.cos(theta));
+    double sin = Math.abs(Math.sin(theta));
+    double extentX = halfLength * cos + halfWidth * sin;
+    double extentY = halfLength * sin + halfWidth * cos;
+    if (x < extentX) {
+      x = extentX;
+      vx = Math.max(vx, 0.0);
+    } else if (x > fieldLength - extentX) {
+      x = fieldLength - extentX;
+      vx = Math.min(vx, 0.0);
+    }
+    if (y < extentY) {
+      y = extentY;
+      vy = Math.max(vy, 0.0);
+    } else if (y > fieldWidth - extentY) {
+      y = fieldWidth - extentY;
+      vy = Math.min(vy, 0.0);
+    }
+  }
+
+  /** Returns the true pose of the robot. */
+  public Pose2d getPose() {
+    return new Pose2d(x, y, new Rotation2d(theta));
+  }
+
+  /** Returns the true field-relative speeds of the robot. */
+  public ChassisSpeeds getFieldRelativeSpeeds() {
+    return new ChassisSpeeds(vx, vy, omega);
+  }
+
+  /** Returns the true heading in radians. */
+  double getYawRad() {
+    return theta;
+  }
+
+  /** Returns the true yaw rate in radians per second. */
+  double getYawVelocityRadPerSec() {
+    return omega;
+  }
+
+  /**
+   * Copies the heading samples of the last update, and marks them as read.
+   *
+   * @return The number of samples.
+   */
+  int drainYawSamples(double[] timestamps, double[] yaws) {
+    int count = sampleCount;
+    System.arraycopy(timestampSamples, 0, timestamps, 0, count);
+    System.arraycopy(yawSamples, 0, yaws, 0, count);
+    sampleCount = 0;
+    return count;
+  }
+}
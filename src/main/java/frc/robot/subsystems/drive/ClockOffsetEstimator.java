@@ -0,0 +1,55 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+/**
+ * Learns the offset between a device clock and FPGA time from pairs of (FPGA receive time, device
+ * measurement time).
+ *
+ * <p>Every observed difference is the true offset plus a non-negative transport delay, so the
+ * estimate tracks the minimum observation. It is allowed to rise slowly to follow clock drift, and
+ * snaps to a new value if the device clock jumps backwards (e.g. after a device reboot).
+ */
+public class ClockOffsetEstimator {
+  private static final double DRIFT_ALLOWANCE = 100e-6; // Seconds of drift per second
+  private static final double RESET_THRESHOLD = 0.1; // Seconds
+
+  private boolean initialized = false;
+  private double offset = 0.0;
+  private double lastUpdateTime = 0.0;
+
+  /**
+   * Adds an observation and returns the updated offset.
+   *
+   * @param fpgaTime The FPGA time when the measurement was received, in seconds.
+   * @param deviceTime The device time when the measurement was taken, in seconds.
+   * @return The offset to add to device times to convert them to FPGA time.
+   */
+  public double update(double fpgaTime, double deviceTime) {
+    double observed = fpgaTime - deviceTime;
+    if (!initialized || observed - offset > RESET_THRESHOLD) {
+      offset = observed;
+      initialized = true;
+    } else {
+      offset = Math.min(observed, offset + DRIFT_ALLOWANCE * (fpgaTime - lastUpdateTime));
+    }
+    lastUpdateTime = fpgaTime;
+    return offset;
+  }
+
+  /** Returns the current offset to add to device times to convert them to FPGA time. */
+  public double getOffset() {
+    return offset;
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.controls.ControlRequest;
+
+/**
+ * Suppresses control requests that repeat the last request sent to one motor.
+ *
+ * <p>A request is only sent if its type changed, its value moved by more than the epsilon, or the
+ * keep-alive period has passed since the last send. Phoenix keeps transmitting the last applied
+ * request in the background, so skipping a repeat does not starve the device; the keep-alive
+ * bounds how long a request that was lost or rejected can go unnoticed. Only used from the main
+ * loop, through {@link PhoenixControlDispatcher}.
+ */
+public class ControlRequestFilter {
+  public static final double KEEP_ALIVE_SECS = 0.1;
+
+  private ControlRequest lastRequest = null;
+  private double lastValue = 0.0;
+  private double lastSendTimestamp = 0.0;
+  private long suppressedCount = 0;
+
+  /**
+   * Returns whether the request should be sent. Records it as sent if so.
+   *
+   * @param request The request object, used to detect a change of control mode.
+   * @param value The setpoint of the request.
+   * @param epsilon The largest change in value that is still treated as a repeat.
+   * @param timestamp The current time in seconds.
+   */
+  public boolean shouldSend(
+      ControlRequest request, double value, double epsilon, double timestamp) {
+    if (request == lastRequest
+        && Math.abs(value - lastValue) <= epsilon
+        && timestamp - lastSendTimestamp < KEEP_ALIVE_SECS) {
+      suppressedCount++;
+      return false;
+    }
+    lastRequest = request;
+    lastValue = value;
+    lastSendTimestamp = timestamp;
+    return true;
+  }
+
+  /** Forgets the last request, e.g. after it failed to send, so the next one is always sent. */
+  public void invalidate() {
+    lastRequest = null;
+  }
+
+  /** Returns the number of control frames suppressed by this filter since startup. */
+  public long getSuppressedCount() {
+    return suppressedCount;
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.wpilibj.RobotController;
+
+/**
+ * Paces a loop against absolute deadlines on the FPGA clock, so work time and sleep jitter do not
+ * accumulate into a lower average rate.
+ *
+ * <p>The thread sleeps until shortly before each deadline and spins for the remainder. If it falls
+ * more than a full period behind, the missed deadlines are skipped instead of being run back to
+ * back, so the loop never bursts to catch up.
+ */
+public class DeadlineScheduler {
+  private static final long SPIN_MICROS = 500;
+
+  private final long periodMicros;
+  private long nextDeadline = -1;
+
+  // Metrics, written by the loop thread and read from any thread
+  private volatile double lastLatenessMicros = 0.0;
+  private volatile long skippedDeadlines = 0;
+
+  public DeadlineScheduler(double frequency) {
+    periodMicros = Math.round(1e6 / frequency);
+  }
+
+  /** Blocks until the next deadline, skipping any that have already been missed entirely. */
+  public void waitForNextDeadline() throws InterruptedException {
+    long now = RobotController.getFPGATime();
+    if (nextDeadline < 0) {
+      nextDeadline = now;
+    }
+    nextDeadline += periodMicros;
+    if (now - nextDeadline >= periodMicros) {
+      long missed = (now - nextDeadline) / periodMicros;
+      nextDeadline += missed * periodMicros;
+      skippedDeadlines += missed;
+    }
+
+    // Sleep through most of the wait, then spin for precision
+    long sleepMicros = nextDeadline - now - SPIN_MICROS;
+    if (sleepMicros > 0) {
+      Thread.sleep(sleepMicros / 1000, (int) (sleepMicros % 1000) * 1000);
+    }
+    long wakeTime = RobotController.getFPGATime();
+    while (wakeTime < nextDeadline) {
+      Thread.onSpinWait();
+      wakeTime = RobotController.getFPGATime();
+    }
+    lastLatenessMicros = wakeTime - nextDeadline;
+  }
+
+  /** Returns how late the most recent wake-up was relative to its deadline, in milliseconds. */
+  public double getLastLatenessMs() {
+    return lastLatenessMicros / 1e3;
+  }
+
+  /** Returns the total number of deadlines skipped because the loop fell behind. */
+  public long getSkippedDeadlines() {
+    return skippedDeadlines;
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Fixed-capacity ring buffer of primitive doubles, used to pass samples from the odometry thread to
+ * the main loop without boxing or locking.
+ *
+ * <p>Slots are indexed by the sample index of the owning {@link OdometrySequence}. The producer
+ * never waits for the consumer; if it laps the consumer, the oldest samples are overwritten and the
+ * consumer discards whatever it cannot prove was intact. Every drain ends at the latched sample
+ * index, so buffers on the same sequence can always be aligned by their newest samples. Capacity
+ * is rounded up to the next power of two.
+ */
+public class DoubleRingBuffer {
+  private final OdometrySequence sequence;
+  private final double[] values;
+  private final int mask;
+  private long readIndex; // Consumer only
+  private long droppedCount = 0; // Consumer only
+
+  /**
+   * Creates a buffer on a sequence that may already be running. Samples published before the
+   * buffer existed hold no value for it, so reading starts at the next published sample, which may
+   * be ahead of the latched index until the next latch.
+   */
+  public DoubleRingBuffer(int capacity, OdometrySequence sequence) {
+    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    this.sequence = sequence;
+    values = new double[size];
+    mask = size - 1;
+    readIndex = sequence.getPublished();
+  }
+
+  /** Returns the maximum number of unread samples held before the oldest are overwritten. */
+  public int getCapacity() {
+    return values.length;
+  }
+
+  /** Returns the total number of samples lost to overwrites before they could be read. */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /** Writes the value for the sample that is about to be published. Producer only. */
+  void put(double value) {
+    values[(int) (sequence.getPublished() & mask)] = value;
+  }
+
+  /**
+   * Returns the value of the most recently published sample. Producer only, e.g. from a {@link
+   * PhoenixOdometryThread.SampleListener}.
+   */
+  public double getLatest() {
+    return values[(int) ((sequence.getPublished() - 1) & mask)];
+  }
+
+  /**
+   * Moves every sample up to the latched index (limited to the length of the output array) into
+   * the output array, oldest first. Samples that were overwritten or did not fit are counted as
+   * dropped. Consumer only.
+   *
+   * @return The number of samples written to the output array.
+   */
+  public int drainTo(double[] output) {
+    long end = sequence.getLatched();
+    if (readIndex >= end) return 0; // Created after the last latch, or nothing new
+    long start = Math.max(readIndex, end - Math.min(values.length, output.length));
+    droppedCount += start - readIndex;
+    for (long i = start; i < end; i++) {
+      output[(int) (i - start)] = values[(int) (i & mask)];
+    }
+    readIndex = end;
+
+    // The slot for the sample being written next may already be dirty, so anything at or
+    // below (published - capacity) could have been replaced while it was being copied
+    VarHandle.loadLoadFence();
+    long firstIntact = sequence.getPublished() + 1 - values.length;
+    if (start < firstIntact) {
+      sequence.recordTornRead();
+      int torn = (int) Math.min(firstIntact - start, end - start);
+      System.arraycopy(output, torn, output, 0, (int) (end - start) - torn);
+      start += torn;
+      droppedCount += torn;
+    }
+    return (int) (end - start);
+  }
+
+  /** Discards all unread samples. Consumer only. */
+  public void clear() {
+    readIndex = Math.max(readIndex, sequence.getLatched());
+  }
+}
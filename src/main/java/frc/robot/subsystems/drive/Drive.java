@@ -15,7 +15,7 @@ package frc.robot.subsystems.drive;
 
 import static edu.wpi.first.units.Units.*;
 
-import com.ctre.phoenix6.CANBus;
+import com.ctre.phoenix6.swerve.SwerveModuleConstants;
 import com.pathplanner.lib.auto.AutoBuilder;
 import com.pathplanner.lib.config.ModuleConfig;
 import com.pathplanner.lib.config.PIDConstants;
@@ -28,12 +28,12 @@ import edu.wpi.first.hal.FRCNetComm.tResourceType;
 import edu.wpi.first.hal.HAL;
 import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.Matrix;
-import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
+import edu.wpi.first.math.filter.Debouncer;
+import edu.wpi.first.math.filter.Debouncer.DebounceType;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Transform2d;
 import edu.wpi.first.math.geometry.Translation2d;
-import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
@@ -53,8 +53,7 @@ import frc.robot.Constants;
 import frc.robot.Constants.Mode;
 import frc.robot.generated.TunerConstants;
 import frc.robot.util.LocalADStarAK;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
 
@@ -64,7 +63,12 @@ public class Drive extends SubsystemBase {
 
   // TunerConstants doesn't include these constants, so they are declared locally
   static final double ODOMETRY_FREQUENCY =
-      new CANBus(TunerConstants.DrivetrainConstants.CANBusName).isNetworkFD() ? 250.0 : 100.0;
+      PhoenixOdometryThread.getSampleFrequency(TunerConstants.kCANBus);
+  static final double MAX_LOOP_STALL_SECS = 0.4; // Odometry is kept through stalls this long
+  private static final double POSE_HISTORY_SECS = 2.0;
+  // Off until the odometry thread pairs per-signal timestamps like the main-loop path does
+  private static final boolean USE_THREADED_ODOMETRY = false;
+  private static final double WHEEL_SLIP_DEBOUNCE_SECS = 0.25;
   public static final double DRIVE_BASE_RADIUS =
       Math.max(
           Math.max(
@@ -75,9 +79,9 @@ public class Drive extends SubsystemBase {
               Math.hypot(TunerConstants.BackRight.LocationX, TunerConstants.BackRight.LocationY)));
 
   // PathPlanner config constants
-  private static final double ROBOT_MASS_KG = 74.088;
-  private static final double ROBOT_MOI = 6.883;
-  private static final double WHEEL_COF = 1.2;
+  static final double ROBOT_MASS_KG = 74.088;
+  static final double ROBOT_MOI = 6.883;
+  static final double WHEEL_COF = 1.2;
   private static final RobotConfig PP_CONFIG =
       new RobotConfig(
           ROBOT_MASS_KG,
@@ -92,25 +96,74 @@ public class Drive extends SubsystemBase {
               1),
           getModuleTranslations());
 
-  static final Lock odometryLock = new ReentrantLock();
+  private static final SwerveModuleState[] EMPTY_MODULE_STATES = new SwerveModuleState[] {};
+
   private final GyroIO gyroIO;
-  private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
+  private final Consumer<Pose2d> resetSimulationPoseCallback;
+  private final GyroIOInputsLogged gyroInputs = new GyroIOInputsLogged();
   private final Module[] modules = new Module[4]; // FL, FR, BL, BR
   private final SysIdRoutine sysId;
   private final Alert gyroDisconnectedAlert =
       new Alert("Disconnected gyro, using kinematics as fallback.", AlertType.kError);
+  private final Alert[] wheelSlipAlerts = new Alert[4];
+  private final Debouncer[] wheelSlipDebouncers = new Debouncer[4];
 
   private SwerveDriveKinematics kinematics = new SwerveDriveKinematics(getModuleTranslations());
-  private Rotation2d rawGyroRotation = new Rotation2d();
-  private SwerveModulePosition[] lastModulePositions = // For delta tracking
-      new SwerveModulePosition[] {
-        new SwerveModulePosition(),
-        new SwerveModulePosition(),
-        new SwerveModulePosition(),
-        new SwerveModulePosition()
-      };
-  private SwerveDrivePoseEstimator poseEstimator =
-      new SwerveDrivePoseEstimator(kinematics, rawGyroRotation, lastModulePositions, new Pose2d());
+  private double rawGyroAngleRad = 0.0;
+
+  // Preallocated odometry state, mutated in place for every sample
+  private final double[] moduleDistancesMeters = new double[4];
+  private final double[] moduleAnglesRad = new double[4];
+  private final double[] lastModuleDistances = new double[4]; // For delta tracking
+  private final double[] moduleDeltaX = new double[4];
+  private final double[] moduleDeltaY = new double[4];
+  private final double[] moduleOffsetX = new double[4]; // Relative to the module centroid
+  private final double[] moduleOffsetY = new double[4];
+  private final double moduleOffsetNormSquared;
+  private double lastSampleTimestamp = 0.0;
+  private final PoseHistory poseHistory = new PoseHistory(POSE_HISTORY_SECS, ODOMETRY_FREQUENCY);
+  private final double[] poseHistorySample = new double[PoseHistory.SAMPLE_SIZE];
+
+  // Gyro samples of this cycle, preceded by the newest sample of the last cycle
+  private final GyroSampleWindow gyroSamples = new GyroSampleWindow();
+
+  // Odometry integrated on the odometry thread, as {timestamp, x, y, theta}
+  private final ThreadedOdometryIO threadedOdometryIO;
+  private final ThreadedOdometryIOInputsAutoLogged threadedOdometryInputs =
+      new ThreadedOdometryIOInputsAutoLogged();
+  private final double[] lastThreadedPose = new double[4];
+  private final double[] latestThreadedPose = new double[4];
+  private final double[] freshPose = new double[3];
+  private Pose2d freshPoseCache = null; // Rebuilt only when a new pose or estimate is available
+  private long freshPoseVersion = 0;
+  private long freshPoseEstimateVersion = 0;
+
+  // Limits setpoints to what the modules can follow
+  private final SwerveSetpointGenerator setpointGenerator =
+      new SwerveSetpointGenerator(
+          getModuleTranslations(),
+          TunerConstants.FrontLeft,
+          TunerConstants.kSpeedAt12Volts.in(MetersPerSecond),
+          DCMotor.getKrakenX60Foc(1),
+          DCMotor.getKrakenX60Foc(1),
+          ROBOT_MASS_KG,
+          WHEEL_COF);
+
+  // Wheel slip rejection
+  private final WheelSlipDetector slipDetector = new WheelSlipDetector(getModuleTranslations());
+  private final double[] moduleWeights = new double[4];
+  private DrivePoseEstimator poseEstimator =
+      new DrivePoseEstimator(
+          getModuleTranslations(),
+          ODOMETRY_FREQUENCY,
+          new Rotation2d(),
+          new SwerveModulePosition[] {
+            new SwerveModulePosition(),
+            new SwerveModulePosition(),
+            new SwerveModulePosition(),
+            new SwerveModulePosition()
+          },
+          new Pose2d());
 
   public Drive(
       GyroIO gyroIO,
@@ -118,16 +171,76 @@ public class Drive extends SubsystemBase {
       ModuleIO frModuleIO,
       ModuleIO blModuleIO,
       ModuleIO brModuleIO) {
+    this(gyroIO, flModuleIO, frModuleIO, blModuleIO, brModuleIO, pose -> {});
+  }
+
+  /**
+   * Creates the drive with a callback that is run whenever the pose is reset, e.g. to move a
+   * simulated robot to the new pose.
+   */
+  public Drive(
+      GyroIO gyroIO,
+      ModuleIO flModuleIO,
+      ModuleIO frModuleIO,
+      ModuleIO blModuleIO,
+      ModuleIO brModuleIO,
+      Consumer<Pose2d> resetSimulationPoseCallback) {
     this.gyroIO = gyroIO;
+    this.resetSimulationPoseCallback = resetSimulationPoseCallback;
     modules[0] = new Module(flModuleIO, 0, TunerConstants.FrontLeft);
     modules[1] = new Module(frModuleIO, 1, TunerConstants.FrontRight);
     modules[2] = new Module(blModuleIO, 2, TunerConstants.BackLeft);
     modules[3] = new Module(brModuleIO, 3, TunerConstants.BackRight);
 
+    // Integrate odometry on the odometry thread if every signal is sampled there
+    if (USE_THREADED_ODOMETRY && gyroIO instanceof GyroIOFused) {
+      throw new IllegalArgumentException(
+          "GyroIOFused has no odometry thread yaw queue, disable USE_THREADED_ODOMETRY to use it");
+    }
+    ThreadedOdometryIO threadedIO =
+        USE_THREADED_ODOMETRY
+            ? ThreadedOdometryIOPhoenix.create(
+                gyroIO,
+                new ModuleIO[] {flModuleIO, frModuleIO, blModuleIO, brModuleIO},
+                new SwerveModuleConstants[] {
+                  TunerConstants.FrontLeft,
+                  TunerConstants.FrontRight,
+                  TunerConstants.BackLeft,
+                  TunerConstants.BackRight
+                },
+                getModuleTranslations())
+            : null;
+    threadedOdometryIO = threadedIO != null ? threadedIO : new ThreadedOdometryIO() {};
+
+    // Precompute module geometry for the kinematic heading fallback
+    Translation2d[] moduleTranslations = getModuleTranslations();
+    double centroidX = 0.0;
+    double centroidY = 0.0;
+    for (int i = 0; i < 4; i++) {
+      centroidX += moduleTranslations[i].getX() / 4.0;
+      centroidY += moduleTranslations[i].getY() / 4.0;
+    }
+    double normSquared = 0.0;
+    for (int i = 0; i < 4; i++) {
+      moduleOffsetX[i] = moduleTranslations[i].getX() - centroidX;
+      moduleOffsetY[i] = moduleTranslations[i].getY() - centroidY;
+      normSquared += moduleOffsetX[i] * moduleOffsetX[i] + moduleOffsetY[i] * moduleOffsetY[i];
+    }
+    moduleOffsetNormSquared = normSquared;
+
+    for (int i = 0; i < 4; i++) {
+      wheelSlipAlerts[i] =
+          new Alert(
+              "Sustained wheel slip on module " + Integer.toString(i) + ".", AlertType.kWarning);
+      wheelSlipDebouncers[i] = new Debouncer(WHEEL_SLIP_DEBOUNCE_SECS, DebounceType.kRising);
+    }
+
     // Usage reporting for swerve template
     HAL.report(tResourceType.kResourceType_RobotDrive, tInstances.kRobotDriveSwerve_AdvantageKit);
 
-    // Start odometry thread
+    // Wait for device configuration, decide timesync for the bus, then start odometry thread
+    PhoenixConfigurator.getInstance().awaitCompletion();
+    PhoenixControlDispatcher.getInstance().configureTimesync(TunerConstants.kCANBus);
     PhoenixOdometryThread.getInstance().start();
 
     // Configure AutoBuilder for PathPlanner
@@ -166,61 +279,235 @@ public class Drive extends SubsystemBase {
 
   @Override
   public void periodic() {
-    odometryLock.lock(); // Prevents odometry updates while reading data
+    long periodicStart = System.nanoTime();
+
+    // Refresh the main-loop signals of every device at once, then read them
+    PhoenixSignalBatch.getInstance().refreshAll();
+    // Every signal is read up to the same sample, without blocking the odometry thread
+    PhoenixOdometryThread.getInstance().latchSamples();
     gyroIO.updateInputs(gyroInputs);
     Logger.processInputs("Drive/Gyro", gyroInputs);
     for (var module : modules) {
       module.periodic();
     }
-    odometryLock.unlock();
+    Logger.recordOutput("Drive/InputsMs", (System.nanoTime() - periodicStart) / 1e6);
+    threadedOdometryIO.setGyroConnected(gyroInputs.connected);
+    threadedOdometryIO.updateInputs(threadedOdometryInputs);
+    Logger.processInputs("Drive/ThreadedOdometry", threadedOdometryInputs);
+    Logger.recordOutput(
+        "Odometry/TornReads", PhoenixOdometryThread.getInstance().getTornReadCount());
+    PhoenixOdometryThread.getInstance().logMetrics();
 
     // Stop moving when disabled
     if (DriverStation.isDisabled()) {
       for (var module : modules) {
         module.stop();
       }
+      PhoenixControlDispatcher.getInstance().dispatch();
     }
 
-    // Log empty setpoint states when disabled
+    // Log empty setpoint states when disabled, and restart setpoints from the measured state
     if (DriverStation.isDisabled()) {
-      Logger.recordOutput("SwerveStates/Setpoints", new SwerveModuleState[] {});
-      Logger.recordOutput("SwerveStates/SetpointsOptimized", new SwerveModuleState[] {});
+      Logger.recordOutput("SwerveStates/Setpoints", EMPTY_MODULE_STATES);
+      Logger.recordOutput("SwerveStates/SetpointsOptimized", EMPTY_MODULE_STATES);
+      setpointGenerator.reset(getChassisSpeeds(), getModuleStates());
     }
 
     // Update odometry
+    if (threadedOdometryInputs.enabled) {
+      applyThreadedOdometry();
+    } else {
+      applyBatchOdometry();
+    }
+
+    // Update wheel slip alerts
+    double[] slipScores =
+        threadedOdometryInputs.enabled
+            ? threadedOdometryInputs.moduleSlipScores
+            : slipDetector.getSlipScores();
+    Logger.recordOutput("Odometry/SlipScores", slipScores);
+    for (int i = 0; i < 4 && i < slipScores.length; i++) {
+      wheelSlipAlerts[i].set(
+          wheelSlipDebouncers[i].calculate(
+              slipScores[i] > WheelSlipDetector.getSlipThreshold()));
+    }
+
+    // Update gyro alert
+    gyroDisconnectedAlert.set(!gyroInputs.connected && Constants.currentMode != Mode.SIM);
+
+    Logger.recordOutput("Drive/BatchedSignalRefresh", PhoenixSignalBatch.BATCH_REFRESH);
+    Logger.recordOutput(
+        "Drive/SynchronizedControlDispatch", PhoenixControlDispatcher.SYNCHRONIZED_DISPATCH);
+    long suppressedControlFrames = 0;
+    for (var module : modules) {
+      suppressedControlFrames += module.getSuppressedControlFrames();
+    }
+    Logger.recordOutput("Drive/SuppressedControlFrames", suppressedControlFrames);
+    Logger.recordOutput("Drive/PeriodicMs", (System.nanoTime() - periodicStart) / 1e6);
+  }
+
+  /** Integrates the odometry samples read this cycle and feeds them to the pose estimator. */
+  private void applyBatchOdometry() {
     double[] sampleTimestamps =
         modules[0].getOdometryTimestamps(); // All signals are sampled together
     int sampleCount = sampleTimestamps.length;
+    for (var module : modules) {
+      sampleCount = Math.min(sampleCount, module.getOdometrySampleCount());
+    }
+    boolean useGyroSamples = collectGyroSamples();
+    double[] gyroSampleTimestamps = gyroSamples.getTimestamps();
+    int gyroSampleCount = gyroSamples.getCount();
+    double maxResidual = 0.0;
+    double residualSum = 0.0;
+    int extrapolatedCount = 0;
     for (int i = 0; i < sampleCount; i++) {
       // Read wheel positions and deltas from each module
-      SwerveModulePosition[] modulePositions = new SwerveModulePosition[4];
-      SwerveModulePosition[] moduleDeltas = new SwerveModulePosition[4];
+      double meanDeltaX = 0.0;
+      double meanDeltaY = 0.0;
       for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
-        modulePositions[moduleIndex] = modules[moduleIndex].getOdometryPositions()[i];
-        moduleDeltas[moduleIndex] =
-            new SwerveModulePosition(
-                modulePositions[moduleIndex].distanceMeters
-                    - lastModulePositions[moduleIndex].distanceMeters,
-                modulePositions[moduleIndex].angle);
-        lastModulePositions[moduleIndex] = modulePositions[moduleIndex];
+        double distance = modules[moduleIndex].getOdometryDrivePositionsMeters()[i];
+        double angle = modules[moduleIndex].getOdometryTurnPositionsRad()[i];
+        double delta = distance - lastModuleDistances[moduleIndex];
+        moduleDeltaX[moduleIndex] = delta * Math.cos(angle);
+        moduleDeltaY[moduleIndex] = delta * Math.sin(angle);
+        lastModuleDistances[moduleIndex] = distance;
+        moduleDistancesMeters[moduleIndex] = distance;
+        moduleAnglesRad[moduleIndex] = angle;
+        meanDeltaX += moduleDeltaX[moduleIndex] / 4.0;
+        meanDeltaY += moduleDeltaY[moduleIndex] / 4.0;
       }
+      double lastGyroAngleRad = rawGyroAngleRad;
 
       // Update gyro angle
-      if (gyroInputs.connected) {
-        // Use the real gyro angle
-        rawGyroRotation = gyroInputs.odometryYawPositions[i];
+      if (useGyroSamples) {
+        // Use the real gyro angle, resampled to the common sample time
+        rawGyroAngleRad = gyroSamples.getYawRad(sampleTimestamps[i]);
+
+        // Track how far the sample time is from the nearest gyro sample
+        int upper =
+            OdometryInterpolation.upperIndex(
+                gyroSampleTimestamps, gyroSampleCount, sampleTimestamps[i]);
+        if (sampleTimestamps[i] < gyroSampleTimestamps[0]
+            || sampleTimestamps[i] > gyroSampleTimestamps[gyroSampleCount - 1]) {
+          extrapolatedCount++;
+        }
+        double residual = Double.POSITIVE_INFINITY;
+        if (upper < gyroSampleCount) {
+          residual = gyroSampleTimestamps[upper] - sampleTimestamps[i];
+        }
+        if (upper > 0) {
+          residual = Math.min(residual, sampleTimestamps[i] - gyroSampleTimestamps[upper - 1]);
+        }
+        maxResidual = Math.max(maxResidual, residual);
+        residualSum += residual;
       } else {
         // Use the angle delta from the kinematics and module deltas
-        Twist2d twist = kinematics.toTwist2d(moduleDeltas);
-        rawGyroRotation = rawGyroRotation.plus(new Rotation2d(twist.dtheta));
+        rawGyroAngleRad += getKinematicRotationDelta();
       }
 
+      // Weight modules by how well they agree with the rigid-body motion
+      double dt = sampleTimestamps[i] - lastSampleTimestamp;
+      lastSampleTimestamp = sampleTimestamps[i];
+      slipDetector.update(
+          moduleDeltaX,
+          moduleDeltaY,
+          gyroInputs.connected
+              ? MathUtil.angleModulus(rawGyroAngleRad - lastGyroAngleRad)
+              : Double.NaN,
+          dt,
+          moduleWeights);
+
       // Apply update
-      poseEstimator.updateWithTime(sampleTimestamps[i], rawGyroRotation, modulePositions);
+      poseEstimator.updateWithTime(
+          sampleTimestamps[i],
+          rawGyroAngleRad,
+          moduleDistancesMeters,
+          moduleAnglesRad,
+          moduleWeights);
+
+      // Record the estimate and robot-relative velocity for latency compensation
+      if (dt > 0.0 && dt < MAX_LOOP_STALL_SECS) {
+        poseHistory.addSample(
+            sampleTimestamps[i],
+            poseEstimator.getEstimatedX(),
+            poseEstimator.getEstimatedY(),
+            poseEstimator.getEstimatedTheta(),
+            meanDeltaX / dt,
+            meanDeltaY / dt,
+            MathUtil.angleModulus(rawGyroAngleRad - lastGyroAngleRad) / dt);
+      }
     }
 
-    // Update gyro alert
-    gyroDisconnectedAlert.set(!gyroInputs.connected && Constants.currentMode != Mode.SIM);
+    // Log how well the module and gyro samples line up in time
+    Logger.recordOutput("Odometry/GyroPairing/ModuleSamples", sampleCount);
+    Logger.recordOutput("Odometry/GyroPairing/GyroSamples", gyroSampleCount);
+    Logger.recordOutput(
+        "Odometry/GyroPairing/MaxResidualMs", useGyroSamples ? maxResidual * 1000.0 : 0.0);
+    Logger.recordOutput(
+        "Odometry/GyroPairing/MeanResidualMs",
+        useGyroSamples && sampleCount > 0 ? residualSum / sampleCount * 1000.0 : 0.0);
+    Logger.recordOutput("Odometry/GyroPairing/ExtrapolatedSamples", extrapolatedCount);
+  }
+
+  /**
+   * Collects this cycle's gyro samples after the newest sample of the last cycle, so module samples
+   * taken just before the first new gyro sample are interpolated rather than extrapolated. The gyro
+   * and module streams may have different lengths and phases, they are paired by timestamp.
+   *
+   * @return Whether the gyro is connected and reported new samples this cycle.
+   */
+  private boolean collectGyroSamples() {
+    if (!gyroInputs.connected) {
+      gyroSamples.clear();
+      return false;
+    }
+    return gyroSamples.update(
+        gyroInputs.odometryYawTimestamps, gyroInputs.odometryYawPositionsRad);
+  }
+
+  /** Feeds the poses integrated on the odometry thread this cycle to the pose estimator. */
+  private void applyThreadedOdometry() {
+    double[] timestamps = threadedOdometryInputs.odometryTimestamps;
+    for (int i = 0; i < timestamps.length; i++) {
+      double x = threadedOdometryInputs.odometryX[i];
+      double y = threadedOdometryInputs.odometryY[i];
+      double theta = threadedOdometryInputs.odometryTheta[i];
+      poseEstimator.updateWithOdometryPose(timestamps[i], x, y, theta);
+
+      // Record the estimate and robot-relative velocity for latency compensation
+      double dt = timestamps[i] - lastSampleTimestamp;
+      if (dt > 0.0 && dt < MAX_LOOP_STALL_SECS) {
+        double dx = x - lastThreadedPose[1];
+        double dy = y - lastThreadedPose[2];
+        double cos = Math.cos(lastThreadedPose[3]);
+        double sin = Math.sin(lastThreadedPose[3]);
+        poseHistory.addSample(
+            timestamps[i],
+            poseEstimator.getEstimatedX(),
+            poseEstimator.getEstimatedY(),
+            poseEstimator.getEstimatedTheta(),
+            (dx * cos + dy * sin) / dt,
+            (-dx * sin + dy * cos) / dt,
+            MathUtil.angleModulus(theta - lastThreadedPose[3]) / dt);
+      }
+      lastSampleTimestamp = timestamps[i];
+      lastThreadedPose[0] = timestamps[i];
+      lastThreadedPose[1] = x;
+      lastThreadedPose[2] = y;
+      lastThreadedPose[3] = theta;
+    }
+  }
+
+  /**
+   * Returns the least-squares rotation of the chassis implied by the latest module displacements,
+   * matching the result of {@link SwerveDriveKinematics#toTwist2d} without allocating.
+   */
+  private double getKinematicRotationDelta() {
+    double cross = 0.0;
+    for (int i = 0; i < 4; i++) {
+      cross += moduleOffsetX[i] * moduleDeltaY[i] - moduleOffsetY[i] * moduleDeltaX[i];
+    }
+    return cross / moduleOffsetNormSquared;
   }
 
   /**
@@ -231,17 +518,20 @@ public class Drive extends SubsystemBase {
   public void runVelocity(ChassisSpeeds speeds) {
     // Calculate module setpoints
     ChassisSpeeds discreteSpeeds = ChassisSpeeds.discretize(speeds, 0.02);
-    SwerveModuleState[] setpointStates = kinematics.toSwerveModuleStates(discreteSpeeds);
-    SwerveDriveKinematics.desaturateWheelSpeeds(setpointStates, TunerConstants.kSpeedAt12Volts);
+    long generatorStart = System.nanoTime();
+    SwerveModuleState[] setpointStates = setpointGenerator.generate(discreteSpeeds, 0.02);
+    Logger.recordOutput("Drive/SetpointGeneratorMs", (System.nanoTime() - generatorStart) / 1e6);
 
     // Log unoptimized setpoints and setpoint speeds
     Logger.recordOutput("SwerveStates/Setpoints", setpointStates);
-    Logger.recordOutput("SwerveChassisSpeeds/Setpoints", discreteSpeeds);
+    Logger.recordOutput("SwerveChassisSpeeds/Desired", discreteSpeeds);
+    Logger.recordOutput("SwerveChassisSpeeds/Setpoints", setpointGenerator.getSetpointSpeeds());
 
     // Send setpoints to modules
     for (int i = 0; i < 4; i++) {
       modules[i].runSetpoint(setpointStates[i]);
     }
+    PhoenixControlDispatcher.getInstance().dispatch();
 
     // Log optimized setpoints (runSetpoint mutates each state)
     Logger.recordOutput("SwerveStates/SetpointsOptimized", setpointStates);
@@ -252,6 +542,7 @@ public class Drive extends SubsystemBase {
     for (int i = 0; i < 4; i++) {
       modules[i].runCharacterization(output);
     }
+    PhoenixControlDispatcher.getInstance().dispatch();
   }
 
   /** Stops the drive. */
@@ -269,6 +560,7 @@ public class Drive extends SubsystemBase {
       headings[i] = getModuleTranslations()[i].getAngle();
     }
     kinematics.resetHeadings(headings);
+    setpointGenerator.resetHeadings(headings);
     stop();
   }
 
@@ -327,12 +619,38 @@ public class Drive extends SubsystemBase {
     return output;
   }
 
-  /** Returns the current odometry pose. */
+  /**
+   * Returns the pose estimated from the samples of this cycle. This is what is logged, since the
+   * fresh pose from {@link #getPose()} depends on thread timing and cannot be replayed.
+   */
   @AutoLogOutput(key = "Odometry/Robot")
-  public Pose2d getPose() {
+  private Pose2d getLoggedPose() {
     return poseEstimator.getEstimatedPosition();
   }
 
+  /**
+   * Returns the current odometry pose. When odometry is integrated on the odometry thread, this
+   * includes samples taken since the last main loop cycle (except during replay).
+   */
+  public Pose2d getPose() {
+    if (!threadedOdometryInputs.enabled || Logger.hasReplaySource()) {
+      return poseEstimator.getEstimatedPosition();
+    }
+    long version = threadedOdometryIO.getLatestPose(latestThreadedPose);
+    if (version == 0 || latestThreadedPose[0] <= lastThreadedPose[0]) {
+      return poseEstimator.getEstimatedPosition();
+    }
+    if (version != freshPoseVersion
+        || poseEstimator.getEstimateVersion() != freshPoseEstimateVersion) {
+      poseEstimator.estimateFromOdometryPose(
+          latestThreadedPose[1], latestThreadedPose[2], latestThreadedPose[3], freshPose);
+      freshPoseCache = new Pose2d(freshPose[0], freshPose[1], new Rotation2d(freshPose[2]));
+      freshPoseVersion = version;
+      freshPoseEstimateVersion = poseEstimator.getEstimateVersion();
+    }
+    return freshPoseCache;
+  }
+
   /** Returns the current odometry rotation. */
   public Rotation2d getRotation() {
     return getPose().getRotation();
@@ -340,7 +658,53 @@ public class Drive extends SubsystemBase {
 
   /** Resets the current odometry pose. */
   public void setPose(Pose2d pose) {
-    poseEstimator.resetPosition(rawGyroRotation, getModulePositions(), pose);
+    resetSimulationPoseCallback.accept(pose);
+    if (threadedOdometryInputs.enabled) {
+      poseEstimator.resetPosition(
+          lastThreadedPose[1], lastThreadedPose[2], lastThreadedPose[3], pose);
+    } else {
+      poseEstimator.resetPosition(new Rotation2d(rawGyroAngleRad), getModulePositions(), pose);
+    }
+    poseHistory.clear();
+  }
+
+  /**
+   * Returns the estimated pose at the given time, interpolated from the pose history. Times outside
+   * the history are clamped to the oldest or newest sample, and the current pose is returned if
+   * the history is empty.
+   */
+  public Pose2d getPoseAt(double timestampSeconds) {
+    if (!poseHistory.sample(timestampSeconds, poseHistorySample)) {
+      return getPose();
+    }
+    return new Pose2d(
+        poseHistorySample[0], poseHistorySample[1], new Rotation2d(poseHistorySample[2]));
+  }
+
+  /** Returns the estimated heading at the given time in radians, without allocating. */
+  public double getRotationRadAt(double timestampSeconds) {
+    if (poseHistory.isEmpty()) {
+      return poseEstimator.getEstimatedTheta();
+    }
+    return poseHistory.sampleTheta(timestampSeconds);
+  }
+
+  /** Returns the measured robot-relative chassis speeds at the given time. */
+  public ChassisSpeeds getChassisSpeedsAt(double timestampSeconds) {
+    if (!poseHistory.sample(timestampSeconds, poseHistorySample)) {
+      return getChassisSpeeds();
+    }
+    return new ChassisSpeeds(poseHistorySample[3], poseHistorySample[4], poseHistorySample[5]);
+  }
+
+  /**
+   * Samples the pose history at the given time without allocating.
+   *
+   * @param output Receives x, y, theta, vx, vy, and omega; see {@link PoseHistory#sample}.
+   * @return Whether any history was available.
+   */
+  public boolean samplePoseHistory(double timestampSeconds, double[] output) {
+    return poseHistory.sample(timestampSeconds, output);
   }
 
   /** Adds a new timestamped vision measurement. */
@@ -0,0 +1,654 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+
+/**
+ * Swerve pose estimator that follows the same algorithm as WPILib's SwerveDrivePoseEstimator, built
+ * for the odometry hot path.
+ *
+ * <p>Odometry and vision history are stored in parallel primitive arrays sized for a fixed time
+ * window, and the Kalman gain is applied in closed form per axis, so odometry updates and vision
+ * measurements do not allocate. Odometry samples are expected in time order.
+ */
+public class DrivePoseEstimator {
+  private static final double BUFFER_DURATION = 1.5; // Seconds, same as WPILib
+  private static final int VISION_CAPACITY = 64;
+
+  // Module geometry and per-sample displacements
+  private final int moduleCount;
+  private final double[] moduleX;
+  private final double[] moduleY;
+  private final double[] moduleDx;
+  private final double[] moduleDy;
+  private final double[] previousDistances;
+  private final double[] scratchDistances;
+  private final double[] scratchAngles;
+
+  // Odometry state
+  private double odometryX = 0.0;
+  private double odometryY = 0.0;
+  private double odometryTheta = 0.0;
+  private double previousAngle = 0.0;
+  private double gyroOffset = 0.0;
+
+  // Transform from externally integrated odometry poses to this estimator's odometry frame
+  private double externalOriginX = 0.0;
+  private double externalOriginY = 0.0;
+  private double externalOriginTheta = 0.0;
+
+  // Odometry pose history, ring buffer in time order
+  private final double[] historyTime;
+  private final double[] historyX;
+  private final double[] historyY;
+  private final double[] historyTheta;
+  private final int historyMask;
+  private int historyStart = 0;
+  private int historySize = 0;
+
+  // Vision updates, ring buffer in time order
+  private final double[] visionTime = new double[VISION_CAPACITY];
+  private final double[] visionX = new double[VISION_CAPACITY];
+  private final double[] visionY = new double[VISION_CAPACITY];
+  private final double[] visionTheta = new double[VISION_CAPACITY];
+  private final double[] visionOdometryX = new double[VISION_CAPACITY];
+  private final double[] visionOdometryY = new double[VISION_CAPACITY];
+  private final double[] visionOdometryTheta = new double[VISION_CAPACITY];
+  private int visionStart = 0;
+  private int visionSize = 0;
+
+  // Closed-form Kalman gain for each of x, y, and theta
+  private final double[] stateVariance = new double[3];
+  private final double[] visionGain = new double[3];
+
+  // Latest estimate
+  private double estimateX = 0.0;
+  private double estimateY = 0.0;
+  private double estimateTheta = 0.0;
+  private Pose2d cachedEstimate = null;
+  private long estimateVersion = 0;
+
+  // Scratch poses as {x, y, theta}
+  private final double[] odometrySample = new double[3];
+  private final double[] estimateSample = new double[3];
+  private final double[] lowerSample = new double[3];
+  private final double[] twist = new double[3];
+
+  /**
+   * Constructs a pose estimator with default standard deviations (0.1 m, 0.1 m, 0.1 rad for the
+   * state and 0.9 m, 0.9 m, 0.9 rad for vision), the same defaults as WPILib.
+   */
+  public DrivePoseEstimator(
+      Translation2d[] moduleTranslations,
+      double odometryFrequency,
+      Rotation2d gyroAngle,
+      SwerveModulePosition[] modulePositions,
+      Pose2d initialPose) {
+    this(
+        moduleTranslations,
+        odometryFrequency,
+        gyroAngle,
+        modulePositions,
+        initialPose,
+        VecBuilder.fill(0.1, 0.1, 0.1),
+        VecBuilder.fill(0.9, 0.9, 0.9));
+  }
+
+  public DrivePoseEstimator(
+      Translation2d[] moduleTranslations,
+      double odometryFrequency,
+      Rotation2d gyroAngle,
+      SwerveModulePosition[] modulePositions,
+      Pose2d initialPose,
+      Matrix<N3, N1> stateStdDevs,
+      Matrix<N3, N1> visionMeasurementStdDevs) {
+    moduleCount = moduleTranslations.length;
+    moduleX = new double[moduleCount];
+    moduleY = new double[moduleCount];
+    moduleDx = new double[moduleCount];
+    moduleDy = new double[moduleCount];
+    previousDistances = new double[moduleCount];
+    scratchDistances = new double[moduleCount];
+    scratchAngles = new double[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      moduleX[i] = moduleTranslations[i].getX();
+      moduleY[i] = moduleTranslations[i].getY();
+    }
+
+    int historyCapacity =
+        Integer.highestOneBit((int) Math.ceil(BUFFER_DURATION * odometryFrequency) + 1) << 1;
+    historyTime = new double[historyCapacity];
+    historyX = new double[historyCapacity];
+    historyY = new double[historyCapacity];
+    historyTheta = new double[historyCapacity];
+    historyMask = historyCapacity - 1;
+
+    for (int i = 0; i < 3; i++) {
+      stateVariance[i] = stateStdDevs.get(i, 0) * stateStdDevs.get(i, 0);
+    }
+    setVisionMeasurementStdDevs(visionMeasurementStdDevs);
+    resetPosition(gyroAngle, modulePositions, initialPose);
+  }
+
+  /**
+   * Sets the trust of vision measurements. Each gain is q / (q + sqrt(q * r)), the closed-form
+   * steady-state Kalman gain for a diagonal state (q) and measurement (r) variance.
+   */
+  public void setVisionMeasurementStdDevs(Matrix<N3, N1> visionMeasurementStdDevs) {
+    for (int i = 0; i < 3; i++) {
+      double q = stateVariance[i];
+      double r = visionMeasurementStdDevs.get(i, 0) * visionMeasurementStdDevs.get(i, 0);
+      visionGain[i] = q == 0.0 ? 0.0 : q / (q + Math.sqrt(q * r));
+    }
+  }
+
+  /** Resets the robot's position on the field. Clears all odometry and vision history. */
+  public void resetPosition(
+      Rotation2d gyroAngle, SwerveModulePosition[] modulePositions, Pose2d pose) {
+    odometryX = pose.getX();
+    odometryY = pose.getY();
+    odometryTheta = pose.getRotation().getRadians();
+    previousAngle = odometryTheta;
+    gyroOffset = odometryTheta - gyroAngle.getRadians();
+    for (int i = 0; i < moduleCount; i++) {
+      previousDistances[i] = modulePositions[i].distanceMeters;
+    }
+    historySize = 0;
+    visionSize = 0;
+    setEstimate(odometryX, odometryY, odometryTheta);
+  }
+
+  /**
+   * Resets the robot's position on the field when odometry is integrated externally (see {@link
+   * #updateWithOdometryPose}). Clears all odometry and vision history.
+   *
+   * @param externalX The X coordinate of the latest external odometry pose in meters.
+   * @param externalY The Y coordinate of the latest external odometry pose in meters.
+   * @param externalTheta The heading of the latest external odometry pose in radians.
+   * @param pose The pose that the latest external odometry pose corresponds to.
+   */
+  public void resetPosition(
+      double externalX, double externalY, double externalTheta, Pose2d pose) {
+    externalOriginTheta = pose.getRotation().getRadians() - externalTheta;
+    double cos = Math.cos(externalOriginTheta);
+    double sin = Math.sin(externalOriginTheta);
+    externalOriginX = pose.getX() - (externalX * cos - externalY * sin);
+    externalOriginY = pose.getY() - (externalX * sin + externalY * cos);
+    odometryX = pose.getX();
+    odometryY = pose.getY();
+    odometryTheta = pose.getRotation().getRadians();
+    historySize = 0;
+    visionSize = 0;
+    setEstimate(odometryX, odometryY, odometryTheta);
+  }
+
+  /** Returns the current pose estimate. */
+  public Pose2d getEstimatedPosition() {
+    if (cachedEstimate == null) {
+      cachedEstimate = new Pose2d(estimateX, estimateY, new Rotation2d(estimateTheta));
+    }
+    return cachedEstimate;
+  }
+
+  /** Returns a count that changes whenever the estimate changes, e.g. to cache derived values. */
+  public long getEstimateVersion() {
+    return estimateVersion;
+  }
+
+  /** Returns the X coordinate of the current pose estimate in meters. */
+  public double getEstimatedX() {
+    return estimateX;
+  }
+
+  /** Returns the Y coordinate of the current pose estimate in meters. */
+  public double getEstimatedY() {
+    return estimateY;
+  }
+
+  /** Returns the heading of the current pose estimate in radians. */
+  public double getEstimatedTheta() {
+    return estimateTheta;
+  }
+
+  /** Updates the pose estimator with wheel encoder and gyro information at the given time. */
+  public Pose2d updateWithTime(
+      double currentTimeSeconds, Rotation2d gyroAngle, SwerveModulePosition[] modulePositions) {
+    for (int i = 0; i < moduleCount; i++) {
+      scratchDistances[i] = modulePositions[i].distanceMeters;
+      scratchAngles[i] = modulePositions[i].angle.getRadians();
+    }
+    updateWithTime(
+        currentTimeSeconds, gyroAngle.getRadians(), scratchDistances, scratchAngles, null);
+    return getEstimatedPosition();
+  }
+
+  /**
+   * Updates the pose estimator with wheel encoder and gyro information at the given time, without
+   * allocating.
+   *
+   * @param currentTimeSeconds Time of the sample in seconds.
+   * @param gyroAngleRad The raw gyro angle in radians.
+   * @param moduleDistancesMeters The drive position of each module in meters.
+   * @param moduleAnglesRad The turn angle of each module in radians.
+   * @param moduleWeights The weight of each module in the fit (e.g. from a {@link
+   *     WheelSlipDetector}), or null to weight them equally.
+   */
+  public void updateWithTime(
+      double currentTimeSeconds,
+      double gyroAngleRad,
+      double[] moduleDistancesMeters,
+      double[] moduleAnglesRad,
+      double[] moduleWeights) {
+    // Least-squares chassis twist from the module displacements
+    for (int i = 0; i < moduleCount; i++) {
+      double delta = moduleDistancesMeters[i] - previousDistances[i];
+      moduleDx[i] = delta * Math.cos(moduleAnglesRad[i]);
+      moduleDy[i] = delta * Math.sin(moduleAnglesRad[i]);
+      previousDistances[i] = moduleDistancesMeters[i];
+    }
+    fitTranslation(moduleX, moduleY, moduleDx, moduleDy, moduleWeights, twist);
+
+    // The gyro replaces the kinematic rotation, as in WPILib odometry
+    double angle = MathUtil.angleModulus(gyroAngleRad + gyroOffset);
+    twist[2] = MathUtil.angleModulus(angle - previousAngle);
+    odometrySample[0] = odometryX;
+    odometrySample[1] = odometryY;
+    odometrySample[2] = odometryTheta;
+    exp(odometrySample, twist, odometrySample);
+    odometryX = odometrySample[0];
+    odometryY = odometrySample[1];
+    odometryTheta = angle;
+    previousAngle = angle;
+    addHistorySample(currentTimeSeconds, odometryX, odometryY, odometryTheta);
+    updateEstimate();
+  }
+
+  /**
+   * Updates the pose estimator with an odometry pose that was integrated elsewhere (e.g. on the
+   * odometry thread), instead of integrating wheel and gyro measurements here. The pose is mapped
+   * into this estimator's frame using the transform set by the last external reset.
+   */
+  public void updateWithOdometryPose(
+      double currentTimeSeconds, double externalX, double externalY, double externalTheta) {
+    mapExternalPose(externalX, externalY, externalTheta, odometrySample);
+    odometryX = odometrySample[0];
+    odometryY = odometrySample[1];
+    odometryTheta = odometrySample[2];
+    addHistorySample(currentTimeSeconds, odometryX, odometryY, odometryTheta);
+    updateEstimate();
+  }
+
+  /**
+   * Returns the estimate for an externally integrated odometry pose newer than the last update,
+   * using the latest vision correction, without changing any state.
+   *
+   * @param output Receives the x, y, and theta of the estimate.
+   */
+  public void estimateFromOdometryPose(
+      double externalX, double externalY, double externalTheta, double[] output) {
+    mapExternalPose(externalX, externalY, externalTheta, output);
+    if (visionSize > 0) {
+      compensate(visionIndex(visionSize - 1), output, output);
+    }
+  }
+
+  /** Adds a vision measurement using the current vision standard deviations. */
+  public void addVisionMeasurement(Pose2d visionRobotPoseMeters, double timestampSeconds) {
+    // Step 0: Skip measurements older than the odometry history
+    if (historySize == 0
+        || historyTime[historyIndex(historySize - 1)] - BUFFER_DURATION > timestampSeconds) {
+      return;
+    }
+
+    // Step 1: Drop vision updates that no odometry sample refers to anymore
+    cleanUpVisionUpdates();
+
+    // Step 2: Odometry pose at the time of the measurement
+    sampleHistory(timestampSeconds, odometrySample);
+
+    // Step 3: Vision-compensated estimate at the time of the measurement
+    sampleEstimate(timestampSeconds, estimateSample);
+
+    // Steps 4-6: Twist from the old estimate to the measurement, scaled by the Kalman gain
+    log(
+        estimateSample,
+        visionRobotPoseMeters.getX(),
+        visionRobotPoseMeters.getY(),
+        visionRobotPoseMeters.getRotation().getRadians(),
+        twist);
+    for (int i = 0; i < 3; i++) {
+      twist[i] *= visionGain[i];
+    }
+    exp(estimateSample, twist, estimateSample);
+
+    // Steps 7-8: Record the update, replacing any later (or simultaneous) ones
+    while (visionSize > 0 && visionTime[visionIndex(visionSize - 1)] >= timestampSeconds) {
+      visionSize--;
+    }
+    if (visionSize == VISION_CAPACITY) {
+      visionStart = visionIndex(1);
+      visionSize--;
+    }
+    int index = visionIndex(visionSize);
+    visionTime[index] = timestampSeconds;
+    visionX[index] = estimateSample[0];
+    visionY[index] = estimateSample[1];
+    visionTheta[index] = estimateSample[2];
+    visionOdometryX[index] = odometrySample[0];
+    visionOdometryY[index] = odometrySample[1];
+    visionOdometryTheta[index] = odometrySample[2];
+    visionSize++;
+
+    // Step 9: Update the latest estimate from the new update
+    updateEstimate();
+  }
+
+  /** Adds a vision measurement and sets the vision standard deviations used from now on. */
+  public void addVisionMeasurement(
+      Pose2d visionRobotPoseMeters,
+      double timestampSeconds,
+      Matrix<N3, N1> visionMeasurementStdDevs) {
+    setVisionMeasurementStdDevs(visionMeasurementStdDevs);
+    addVisionMeasurement(visionRobotPoseMeters, timestampSeconds);
+  }
+
+  /**
+   * Fits the chassis translation to module displacements with weighted least squares, matching
+   * {@link edu.wpi.first.math.kinematics.SwerveDriveKinematics#toTwist2d} when the weights are
+   * equal. Does not allocate.
+   *
+   * @param moduleX The X position of each module on the robot in meters.
+   * @param moduleY The Y position of each module on the robot in meters.
+   * @param moduleDx The robot-relative X displacement of each module in meters.
+   * @param moduleDy The robot-relative Y displacement of each module in meters.
+   * @param weights The weight of each module, or null to weight them equally.
+   * @param output Receives the X and Y translation of the robot origin and the fitted rotation.
+   */
+  static void fitTranslation(
+      double[] moduleX,
+      double[] moduleY,
+      double[] moduleDx,
+      double[] moduleDy,
+      double[] weights,
+      double[] output) {
+    int count = moduleX.length;
+    double totalWeight = 0.0;
+    double centroidX = 0.0;
+    double centroidY = 0.0;
+    double meanDx = 0.0;
+    double meanDy = 0.0;
+    for (int i = 0; i < count; i++) {
+      double weight = weights == null ? 1.0 : weights[i];
+      totalWeight += weight;
+      centroidX += weight * moduleX[i];
+      centroidY += weight * moduleY[i];
+      meanDx += weight * moduleDx[i];
+      meanDy += weight * moduleDy[i];
+    }
+    if (totalWeight <= 0.0) {
+      fitTranslation(moduleX, moduleY, moduleDx, moduleDy, null, output);
+      return;
+    }
+    centroidX /= totalWeight;
+    centroidY /= totalWeight;
+    meanDx /= totalWeight;
+    meanDy /= totalWeight;
+
+    double cross = 0.0;
+    double normSquared = 0.0;
+    for (int i = 0; i < count; i++) {
+      double weight = weights == null ? 1.0 : weights[i];
+      double offsetX = moduleX[i] - centroidX;
+      double offsetY = moduleY[i] - centroidY;
+      cross += weight * (offsetX * moduleDy[i] - offsetY * moduleDx[i]);
+      normSquared += weight * (offsetX * offsetX + offsetY * offsetY);
+    }
+    double dtheta = normSquared > 0.0 ? cross / normSquared : 0.0;
+    output[0] = meanDx + dtheta * centroidY;
+    output[1] = meanDy - dtheta * centroidX;
+    output[2] = dtheta;
+  }
+
+  /** Applies the latest vision correction to the current odometry pose. */
+  private void updateEstimate() {
+    if (visionSize == 0) {
+      setEstimate(odometryX, odometryY, odometryTheta);
+      return;
+    }
+    odometrySample[0] = odometryX;
+    odometrySample[1] = odometryY;
+    odometrySample[2] = odometryTheta;
+    compensate(visionIndex(visionSize - 1), odometrySample, estimateSample);
+    setEstimate(estimateSample[0], estimateSample[1], estimateSample[2]);
+  }
+
+  private void mapExternalPose(double x, double y, double theta, double[] output) {
+    double cos = Math.cos(externalOriginTheta);
+    double sin = Math.sin(externalOriginTheta);
+    output[0] = externalOriginX + x * cos - y * sin;
+    output[1] = externalOriginY + x * sin + y * cos;
+    output[2] = MathUtil.angleModulus(externalOriginTheta + theta);
+  }
+
+  private void setEstimate(double x, double y, double theta) {
+    estimateX = x;
+    estimateY = y;
+    estimateTheta = theta;
+    cachedEstimate = null;
+    estimateVersion++;
+  }
+
+  private int historyIndex(int logicalIndex) {
+    return (historyStart + logicalIndex) & historyMask;
+  }
+
+  private int visionIndex(int logicalIndex) {
+    return (visionStart + logicalIndex) % VISION_CAPACITY;
+  }
+
+  private void addHistorySample(double time, double x, double y, double theta) {
+    // Drop samples that have left the time window
+    while (historySize > 0 && time - historyTime[historyStart] >= BUFFER_DURATION) {
+      historyStart = historyIndex(1);
+      historySize--;
+    }
+    if (historySize == historyTime.length) {
+      historyStart = historyIndex(1);
+      historySize--;
+    }
+
+    // Samples normally arrive in order; otherwise shift newer samples to keep the order
+    int insert = historySize;
+    while (insert > 0 && historyTime[historyIndex(insert - 1)] >= time) {
+      insert--;
+    }
+    if (insert < historySize && historyTime[historyIndex(insert)] == time) {
+      historySize--; // Replace the sample at the same time
+      for (int i = insert; i < historySize; i++) {
+        copyHistory(historyIndex(i + 1), historyIndex(i));
+      }
+    }
+    for (int i = historySize; i > insert; i--) {
+      copyHistory(historyIndex(i - 1), historyIndex(i));
+    }
+    int index = historyIndex(insert);
+    historyTime[index] = time;
+    historyX[index] = x;
+    historyY[index] = y;
+    historyTheta[index] = theta;
+    historySize++;
+  }
+
+  private void copyHistory(int from, int to) {
+    historyTime[to] = historyTime[from];
+    historyX[to] = historyX[from];
+    historyY[to] = historyY[from];
+    historyTheta[to] = historyTheta[from];
+  }
+
+  /** Returns the logical index of the first history sample at or after the given time. */
+  private int historyUpperIndex(double time) {
+    int low = 0;
+    int high = historySize;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (historyTime[historyIndex(mid)] < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** Samples the odometry history at the given time, clamping to the oldest and newest samples. */
+  private void sampleHistory(double time, double[] output) {
+    int upper = historyUpperIndex(time);
+    if (upper == 0 || upper == historySize) {
+      int index = historyIndex(upper == 0 ? 0 : historySize - 1);
+      output[0] = historyX[index];
+      output[1] = historyY[index];
+      output[2] = historyTheta[index];
+      return;
+    }
+    int upperIndex = historyIndex(upper);
+    int lowerIndex = historyIndex(upper - 1);
+    lowerSample[0] = historyX[lowerIndex];
+    lowerSample[1] = historyY[lowerIndex];
+    lowerSample[2] = historyTheta[lowerIndex];
+    if (historyTime[upperIndex] == time) {
+      output[0] = historyX[upperIndex];
+      output[1] = historyY[upperIndex];
+      output[2] = historyTheta[upperIndex];
+      return;
+    }
+    double fraction =
+        (time - historyTime[lowerIndex]) / (historyTime[upperIndex] - historyTime[lowerIndex]);
+    log(lowerSample, historyX[upperIndex], historyY[upperIndex], historyTheta[upperIndex], twist);
+    for (int i = 0; i < 3; i++) {
+      twist[i] *= fraction;
+    }
+    exp(lowerSample, twist, output);
+  }
+
+  /** Samples the vision-compensated estimate at the given time. */
+  private void sampleEstimate(double time, double[] output) {
+    double clampedTime =
+        MathUtil.clamp(
+            time, historyTime[historyIndex(0)], historyTime[historyIndex(historySize - 1)]);
+    sampleHistory(clampedTime, output);
+    if (visionSize == 0 || clampedTime < visionTime[visionIndex(0)]) {
+      return;
+    }
+    int floor = visionSize - 1;
+    while (visionTime[visionIndex(floor)] > clampedTime) {
+      floor--;
+    }
+    compensate(visionIndex(floor), output, output);
+  }
+
+  /** Removes vision updates older than the newest one needed by the oldest odometry sample. */
+  private void cleanUpVisionUpdates() {
+    if (historySize == 0 || visionSize == 0) return;
+    double oldestOdometryTime = historyTime[historyIndex(0)];
+    if (oldestOdometryTime < visionTime[visionIndex(0)]) return;
+    int floor = visionSize - 1;
+    while (visionTime[visionIndex(floor)] > oldestOdometryTime) {
+      floor--;
+    }
+    visionStart = visionIndex(floor);
+    visionSize -= floor;
+  }
+
+  /**
+   * Applies a vision update to an odometry pose: the vision pose transformed by the motion from the
+   * odometry pose recorded with the update to the given pose. The output may alias the input.
+   */
+  private void compensate(int visionIndex, double[] pose, double[] output) {
+    double recordedTheta = visionOdometryTheta[visionIndex];
+    double dx = pose[0] - visionOdometryX[visionIndex];
+    double dy = pose[1] - visionOdometryY[visionIndex];
+    double cos = Math.cos(recordedTheta);
+    double sin = Math.sin(recordedTheta);
+    double localX = dx * cos + dy * sin;
+    double localY = -dx * sin + dy * cos;
+    double localTheta = pose[2] - recordedTheta;
+
+    double theta = visionTheta[visionIndex];
+    cos = Math.cos(theta);
+    sin = Math.sin(theta);
+    output[0] = visionX[visionIndex] + localX * cos - localY * sin;
+    output[1] = visionY[visionIndex] + localX * sin + localY * cos;
+    output[2] = MathUtil.angleModulus(theta + localTheta);
+  }
+
+  /** Applies a twist to a pose, equivalent to Pose2d.exp. The output may alias the input. */
+  private static void exp(double[] pose, double[] twist, double[] output) {
+    double dx = twist[0];
+    double dy = twist[1];
+    double dtheta = twist[2];
+    double sinTheta = Math.sin(dtheta);
+    double cosTheta = Math.cos(dtheta);
+    double s;
+    double c;
+    if (Math.abs(dtheta) < 1e-9) {
+      s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+      c = 0.5 * dtheta;
+    } else {
+      s = sinTheta / dtheta;
+      c = (1 - cosTheta) / dtheta;
+    }
+    double localX = dx * s - dy * c;
+    double localY = dx * c + dy * s;
+    double theta = pose[2];
+    double cos = Math.cos(theta);
+    double sin = Math.sin(theta);
+    output[0] = pose[0] + localX * cos - localY * sin;
+    output[1] = pose[1] + localX * sin + localY * cos;
+    output[2] = MathUtil.angleModulus(theta + dtheta);
+  }
+
+  /** Returns the twist from a pose to an end pose, equivalent to Pose2d.log. */
+  private static void log(
+      double[] pose, double endX, double endY, double endTheta, double[] output) {
+    double dx = endX - pose[0];
+    double dy = endY - pose[1];
+    double cos = Math.cos(pose[2]);
+    double sin = Math.sin(pose[2]);
+    double localX = dx * cos + dy * sin;
+    double localY = -dx * sin + dy * cos;
+    double dtheta = MathUtil.angleModulus(endTheta - pose[2]);
+
+    double halfDtheta = dtheta / 2.0;
+    double cosMinusOne = Math.cos(dtheta) - 1;
+    double halfThetaByTanOfHalfDtheta;
+    if (Math.abs(cosMinusOne) < 1e-9) {
+      halfThetaByTanOfHalfDtheta = 1.0 - 1.0 / 12.0 * dtheta * dtheta;
+    } else {
+      halfThetaByTanOfHalfDtheta = -(halfDtheta * Math.sin(dtheta)) / cosMinusOne;
+    }
+    output[0] = localX * halfThetaByTanOfHalfDtheta + localY * halfDtheta;
+    output[1] = localY * halfThetaByTanOfHalfDtheta - localX * halfDtheta;
+    output[2] = dtheta;
+  }
+}
@@ -0,0 +1,263 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Applies a {@link FaultProfile} to the frames of one simulated device.
+ *
+ * <p>Two kinds of frames are delayed: snapshots of the main-loop inputs, of which the newest one
+ * that has arrived is reported, and timestamped odometry samples, which keep their measurement
+ * timestamps and are all reported once they arrive. Frames arrive in the order they were sent, as
+ * on a CAN bus. Frames sent while disconnected, or dropped at random, never arrive.
+ *
+ * <p>Pending frames are kept in primitive rings that only grow while the latency is higher than
+ * ever before, and snapshots are recycled through {@link #acquireSnapshot()}, so a steady fault
+ * profile does not allocate every loop.
+ *
+ * @param <T> The type of the input snapshots.
+ */
+class FaultInjector<T> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final FaultProfile profile;
+  private final Random random;
+  private final double startTimestamp;
+  private final int valueCount;
+  private final Supplier<T> snapshotFactory;
+
+  // Snapshots in flight, oldest first, and the snapshots free to be filled again
+  private Object[] pendingSnapshots = new Object[INITIAL_CAPACITY];
+  private double[] pendingSnapshotArrivals = new double[INITIAL_CAPACITY];
+  private int snapshotHead = 0;
+  private int snapshotCount = 0;
+  private double lastSnapshotArrival = Double.NEGATIVE_INFINITY;
+  private final ArrayDeque<T> freeSnapshots = new ArrayDeque<>();
+  private T polledSnapshot = null;
+
+  // Odometry samples in flight, oldest first (values are stored valueCount per sample)
+  private double[] sampleArrivals = new double[INITIAL_CAPACITY];
+  private double[] sampleTimestamps = new double[INITIAL_CAPACITY];
+  private double[] sampleValues;
+  private int sampleHead = 0;
+  private int sampleCount = 0;
+  private double lastSampleArrival = Double.NEGATIVE_INFINITY;
+  private long droppedCount = 0;
+
+  /**
+   * Creates an injector.
+   *
+   * @param profile The faults to inject.
+   * @param seed The random seed, so a scenario can be repeated exactly.
+   * @param startTimestamp The startup time that disconnect windows are relative to.
+   * @param valueCount The number of values in each odometry sample, 1 or 2.
+   * @param snapshotFactory Creates a snapshot when none is free to be reused.
+   */
+  FaultInjector(
+      FaultProfile profile,
+      long seed,
+      double startTimestamp,
+      int valueCount,
+      Supplier<T> snapshotFactory) {
+    this.profile = profile;
+    this.random = new Random(seed);
+    this.startTimestamp = startTimestamp;
+    this.valueCount = valueCount;
+    this.snapshotFactory = snapshotFactory;
+    sampleValues = new double[INITIAL_CAPACITY * valueCount];
+  }
+
+  /** Returns whether the device is disconnected at the given time. */
+  boolean isDisconnected(double timestamp) {
+    return profile.isDisconnected(timestamp - startTimestamp);
+  }
+
+  /** Returns whether a frame sent at the given time is lost. */
+  private boolean isLost(double timestamp) {
+    return isDisconnected(timestamp) || random.nextDouble() < profile.getDropProbability();
+  }
+
+  private double sampleLatency() {
+    return Math.max(
+        profile.getLatencyMeanSecs() + random.nextGaussian() * profile.getLatencyJitterSecs(),
+        0.0);
+  }
+
+  /**
+   * Returns a snapshot to fill and pass to {@link #offerSnapshot(Object, double)}. It is either
+   * new or one that is no longer in flight or reported, so all of its fields must be set.
+   */
+  T acquireSnapshot() {
+    T snapshot = freeSnapshots.poll();
+    return snapshot != null ? snapshot : snapshotFactory.get();
+  }
+
+  /** Sends an input snapshot at the given time. */
+  void offerSnapshot(T snapshot, double timestamp) {
+    if (isLost(timestamp)) {
+      freeSnapshots.push(snapshot);
+      return;
+    }
+    lastSnapshotArrival = Math.max(timestamp + sampleLatency(), lastSnapshotArrival);
+    if (snapshotCount == pendingSnapshots.length) {
+      pendingSnapshots = grow(pendingSnapshots, snapshotHead);
+      pendingSnapshotArrivals = grow(pendingSnapshotArrivals, snapshotHead, 1);
+      snapshotHead = 0;
+    }
+    int index = (snapshotHead + snapshotCount) % pendingSnapshots.length;
+    pendingSnapshots[index] = snapshot;
+    pendingSnapshotArrivals[index] = lastSnapshotArrival;
+    snapshotCount++;
+  }
+
+  /**
+   * Returns the newest snapshot that has arrived by the given time, or null if none has. The
+   * snapshot stays valid until another one is returned.
+   */
+  @SuppressWarnings("unchecked")
+  T pollSnapshot(double timestamp) {
+    T newest = null;
+    while (snapshotCount > 0 && pendingSnapshotArrivals[snapshotHead] <= timestamp) {
+      if (newest != null) {
+        freeSnapshots.push(newest);
+      }
+      newest = (T) pendingSnapshots[snapshotHead];
+      pendingSnapshots[snapshotHead] = null;
+      snapshotHead = (snapshotHead + 1) % pendingSnapshots.length;
+      snapshotCount--;
+    }
+    if (newest != null) {
+      if (polledSnapshot != null) {
+        freeSnapshots.push(polledSnapshot);
+      }
+      polledSnapshot = newest;
+    }
+    return newest;
+  }
+
+  /** Sends an odometry sample with one value, measured at the given time. */
+  void offerSample(double timestamp, double value) {
+    int index = addSample(timestamp);
+    if (index < 0) return;
+    sampleValues[index * valueCount] = value;
+  }
+
+  /** Sends an odometry sample with two values, measured at the given time. */
+  void offerSample(double timestamp, double value0, double value1) {
+    int index = addSample(timestamp);
+    if (index < 0) return;
+    sampleValues[index * valueCount] = value0;
+    sampleValues[index * valueCount + 1] = value1;
+  }
+
+  /** Adds a sample to the end of the ring, returning its index or -1 if it was lost. */
+  private int addSample(double timestamp) {
+    if (isLost(timestamp)) {
+      droppedCount++;
+      return -1;
+    }
+    lastSampleArrival = Math.max(timestamp + sampleLatency(), lastSampleArrival);
+    if (sampleCount == sampleArrivals.length) {
+      sampleArrivals = grow(sampleArrivals, sampleHead, 1);
+      sampleTimestamps = grow(sampleTimestamps, sampleHead, 1);
+      sampleValues = grow(sampleValues, sampleHead, valueCount);
+      sampleHead = 0;
+    }
+    int index = (sampleHead + sampleCount) % sampleArrivals.length;
+    sampleArrivals[index] = lastSampleArrival;
+    sampleTimestamps[index] = timestamp;
+    sampleCount++;
+    return index;
+  }
+
+  /** Returns the number of odometry samples that have arrived by the given time. */
+  int countArrivedSamples(double timestamp) {
+    int count = 0;
+    while (count < sampleCount
+        && sampleArrivals[(sampleHead + count) % sampleArrivals.length] <= timestamp) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Removes the oldest odometry samples with one value, after counting them with {@link
+   * #countArrivedSamples(double)}.
+   *
+   * @param count The number of samples to take.
+   * @param timestamps Receives the measurement timestamps.
+   * @param values Receives the values of the samples.
+   */
+  void takeSamples(int count, double[] timestamps, double[] values) {
+    for (int i = 0; i < count; i++) {
+      int index = removeSample(timestamps, i);
+      values[i] = sampleValues[index * valueCount];
+    }
+  }
+
+  /**
+   * Removes the oldest odometry samples with two values, after counting them with {@link
+   * #countArrivedSamples(double)}.
+   *
+   * @param count The number of samples to take.
+   * @param timestamps Receives the measurement timestamps.
+   * @param values0 Receives the first value of the samples.
+   * @param values1 Receives the second value of the samples.
+   */
+  void takeSamples(int count, double[] timestamps, double[] values0, double[] values1) {
+    for (int i = 0; i < count; i++) {
+      int index = removeSample(timestamps, i);
+      values0[i] = sampleValues[index * valueCount];
+      values1[i] = sampleValues[index * valueCount + 1];
+    }
+  }
+
+  /**
+   * Removes the oldest sample from the ring, returning its index. Its values stay in place until
+   * the next sample is added.
+   */
+  private int removeSample(double[] timestamps, int i) {
+    int index = sampleHead;
+    timestamps[i] = sampleTimestamps[index];
+    sampleHead = (sampleHead + 1) % sampleArrivals.length;
+    sampleCount--;
+    return index;
+  }
+
+  /** Returns the number of odometry samples that were lost. */
+  long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /** Doubles the capacity of a full ring, moving its oldest element to the start. */
+  private static double[] grow(double[] ring, int head, int stride) {
+    int capacity = ring.length / stride;
+    double[] grown = new double[ring.length * 2];
+    int split = (capacity - head) * stride;
+    System.arraycopy(ring, head * stride, grown, 0, split);
+    System.arraycopy(ring, 0, grown, split, head * stride);
+    return grown;
+  }
+
+  /** Doubles the capacity of a full ring, moving its oldest element to the start. */
+  private static Object[] grow(Object[] ring, int head) {
+    Object[] grown = new Object[ring.length * 2];
+    System.arraycopy(ring, head, grown, 0, ring.length - head);
+    System.arraycopy(ring, 0, grown, ring.length - head, head);
+    return grown;
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import java.util.Arrays;
+
+/**
+ * Describes the CAN faults to inject into simulated IO: latency with jitter, dropped frames, and
+ * windows in which a device is disconnected. Profiles are immutable; the {@code with} methods
+ * return modified copies, so scenarios can be built up from the presets.
+ */
+public class FaultProfile {
+  /** No faults, IO is passed through unchanged. */
+  public static final FaultProfile NONE = new FaultProfile("none", 0.0, 0.0, 0.0, new double[0]);
+
+  /** A healthy but busy bus. */
+  public static final FaultProfile TYPICAL =
+      NONE.withName("typical").withLatency(0.004, 0.002).withDropProbability(0.01);
+
+  /** A congested bus with long, jittery latency and frequent drops. */
+  public static final FaultProfile CONGESTED =
+      NONE.withName("congested").withLatency(0.015, 0.008).withDropProbability(0.05);
+
+  /** A typical bus with devices that briefly disconnect. */
+  public static final FaultProfile INTERMITTENT =
+      TYPICAL.withName("intermittent").withDisconnect(3.0, 0.25).withDisconnect(8.0, 1.0);
+
+  private static final FaultProfile[] PRESETS =
+      new FaultProfile[] {NONE, TYPICAL, CONGESTED, INTERMITTENT};
+
+  private final String name;
+  private final double latencyMeanSecs;
+  private final double latencyJitterSecs;
+  private final double dropProbability;
+  private final double[] disconnectWindows; // Start and end pairs, seconds since startup
+
+  private FaultProfile(
+      String name,
+      double latencyMeanSecs,
+      double latencyJitterSecs,
+      double dropProbability,
+      double[] disconnectWindows) {
+    this.name = name;
+    this.latencyMeanSecs = latencyMeanSecs;
+    this.latencyJitterSecs = latencyJitterSecs;
+    this.dropProbability = dropProbability;
+    this.disconnectWindows = disconnectWindows;
+  }
+
+  /** Returns the preset with the given name. */
+  public static FaultProfile forName(String name) {
+    for (FaultProfile preset : PRESETS) {
+      if (preset.name.equalsIgnoreCase(name)) return preset;
+    }
+    throw new IllegalArgumentException("Unknown fault profile: " + name);
+  }
+
+  public FaultProfile withName(String name) {
+    return new FaultProfile(
+        name, latencyMeanSecs, latencyJitterSecs, dropProbability, disconnectWindows);
+  }
+
+  /**
+   * Returns a copy with normally distributed latency.
+   *
+   * @param meanSecs The mean latency in seconds.
+   * @param jitterSecs The standard deviation of the latency in seconds.
+   */
+  public FaultProfile withLatency(double meanSecs, double jitterSecs) {
+    return new FaultProfile(name, meanSecs, jitterSecs, dropProbability, disconnectWindows);
+  }
+
+  /** Returns a copy that drops each frame with the given probability. */
+  public FaultProfile withDropProbability(double probability) {
+    return new FaultProfile(
+        name, latencyMeanSecs, latencyJitterSecs, probability, disconnectWindows);
+  }
+
+  /** Returns a copy that is also disconnected for the given window after startup. */
+  public FaultProfile withDisconnect(double startSecs, double durationSecs) {
+    double[] windows = Arrays.copyOf(disconnectWindows, disconnectWindows.length + 2);
+    windows[windows.length - 2] = startSecs;
+    windows[windows.length - 1] = startSecs + durationSecs;
+    return new FaultProfile(name, latencyMeanSecs, latencyJitterSecs, dropProbability, windows);
+  }
+
+  /** Wraps a gyro IO with this profile, or returns it unchanged if there are no faults. */
+  public GyroIO wrap(GyroIO io, long seed) {
+    return this == NONE ? io : new GyroIOWithFaults(io, this, seed);
+  }
+
+  /** Wraps a module IO with this profile, or returns it unchanged if there are no faults. */
+  public ModuleIO wrap(ModuleIO io, long seed) {
+    return this == NONE ? io : new ModuleIOWithFaults(io, this, seed);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  double getLatencyMeanSecs() {
+    return latencyMeanSecs;
+  }
+
+  double getLatencyJitterSecs() {
+    return latencyJitterSecs;
+  }
+
+  double getDropProbability() {
+    return dropProbability;
+  }
+
+  /** Returns whether the device is disconnected at the given time since startup. */
+  boolean isDisconnected(double secsSinceStartup) {
+    for (int i = 0; i < disconnectWindows.length; i += 2) {
+      if (secsSinceStartup >= disconnectWindows[i] && secsSinceStartup < disconnectWindows[i + 1]) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
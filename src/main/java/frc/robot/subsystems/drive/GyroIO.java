@@ -23,8 +23,18 @@ public interface GyroIO {
     public Rotation2d yawPosition = new Rotation2d();
     public double yawVelocityRadPerSec = 0.0;
     public double[] odometryYawTimestamps = new double[] {};
-    public Rotation2d[] odometryYawPositions = new Rotation2d[] {};
+    public double[] odometryYawPositionsRad = new double[] {};
+    public long odometryYawDroppedSamples = 0;
   }
 
   public default void updateInputs(GyroIOInputs inputs) {}
+
+  /**
+   * Returns the buffer the odometry thread for {@link frc.robot.generated.TunerConstants#kCANBus}
+   * writes yaw positions to (in degrees), for integrating odometry on that thread, or null if this
+   * implementation does not use it.
+   */
+  public default DoubleRingBuffer getOdometryYawQueue() {
+    return null;
+  }
 }
@@ -0,0 +1,212 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.filter.Debouncer;
+import edu.wpi.first.math.filter.Debouncer.DebounceType;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.wpilibj.Timer;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * IO implementation that fuses two gyros, for redundancy against either one dropping out.
+ *
+ * <p>The primary gyro defines the heading. The offset of the secondary gyro relative to the
+ * primary is learned continuously with a low-pass filter while both are healthy. The fused heading
+ * is a complementary filter: it integrates a weighted blend of the heading increments of every
+ * healthy gyro, and is pulled slowly towards the primary heading (or the bias-corrected secondary
+ * heading if the primary is unhealthy). Because the fused heading only ever moves by increments
+ * and a slow pull, switching between gyros does not cause a jump.
+ *
+ * <p>A gyro is healthy while it is connected and producing samples; after a dropout it must be
+ * healthy for a short time before it is used again. Fused samples are produced at the sample times
+ * of the healthy gyro that the heading follows, with the other gyro resampled to those times.
+ *
+ * <p>This IO does not provide a yaw queue on the odometry thread, so it only works with odometry
+ * integrated on the main loop (the default). Drive refuses to construct with it if threaded
+ * odometry is enabled.
+ */
+public class GyroIOFused implements GyroIO {
+  private static final double SECONDARY_WEIGHT = 0.3; // Share of the increments while both healthy
+  private static final double BIAS_TIME_CONSTANT = 2.0; // Seconds
+  private static final double PULL_TIME_CONSTANT = 0.5; // Seconds
+  private static final double STALE_SECS = 0.1; // Time without samples before a gyro is unhealthy
+  private static final double RECOVERY_SECS = 0.5; // Time healthy before a gyro is used again
+
+  private final Source primary;
+  private final Source secondary;
+
+  private boolean initialized = false;
+  private double fusedYawRad = 0.0;
+  private double biasRad = 0.0; // Secondary minus primary heading
+  private double lastTimestamp = 0.0;
+  private double lastPrimaryYawRad = Double.NaN;
+  private double lastSecondaryYawRad = Double.NaN;
+  private double disagreementRad = 0.0;
+  private final SampleArrays.SwapBuffer yawTimestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer yawPositionBuffer = new SampleArrays.SwapBuffer();
+
+  /** One of the fused gyros, with its samples for this cycle and its health. */
+  private static class Source {
+    private final GyroIO io;
+    private final String logKey;
+    private final GyroIOInputsLogged inputs = new GyroIOInputsLogged();
+    private final Debouncer healthyDebouncer = new Debouncer(RECOVERY_SECS, DebounceType.kRising);
+    private boolean healthy = false;
+    private double lastSampleTime = Double.NEGATIVE_INFINITY;
+    private final GyroSampleWindow samples = new GyroSampleWindow();
+
+    private Source(GyroIO io, String logKey) {
+      this.io = io;
+      this.logKey = logKey;
+    }
+
+    private void update(double timestamp) {
+      io.updateInputs(inputs);
+      Logger.processInputs(logKey, inputs);
+
+      // Collect the new samples after the newest old one, for interpolation across cycles
+      if (samples.update(inputs.odometryYawTimestamps, inputs.odometryYawPositionsRad)) {
+        lastSampleTime = timestamp;
+      }
+      healthy =
+          healthyDebouncer.calculate(
+              inputs.connected && timestamp - lastSampleTime < STALE_SECS);
+    }
+
+    /** Returns the heading at the given time, interpolated between the samples. */
+    private double getYawRad(double timestamp) {
+      return samples.getYawRad(timestamp);
+    }
+  }
+
+  /**
+   * Creates a fused gyro.
+   *
+   * @param primary The gyro that defines the heading while it is healthy.
+   * @param secondary The backup gyro.
+   */
+  public GyroIOFused(GyroIO primary, GyroIO secondary) {
+    this.primary = new Source(primary, "Drive/GyroFusion/Primary");
+    this.secondary = new Source(secondary, "Drive/GyroFusion/Secondary");
+  }
+
+  @Override
+  public void updateInputs(GyroIOInputs inputs) {
+    double timestamp = Timer.getFPGATimestamp();
+    primary.update(timestamp);
+    secondary.update(timestamp);
+
+    // Follow the sample times of the primary gyro, or the secondary if it is the only one healthy
+    Source reference = primary.healthy ? primary : secondary.healthy ? secondary : null;
+    int sampleCount =
+        reference != null ? reference.samples.getCount() - reference.samples.getKeptCount() : 0;
+    inputs.odometryYawTimestamps = yawTimestampBuffer.next(sampleCount);
+    inputs.odometryYawPositionsRad = yawPositionBuffer.next(sampleCount);
+    for (int i = 0; i < sampleCount; i++) {
+      double sampleTimestamp =
+          reference.samples.getTimestamps()[reference.samples.getKeptCount() + i];
+      double primaryYawRad = primary.healthy ? primary.getYawRad(sampleTimestamp) : Double.NaN;
+      double secondaryYawRad =
+          secondary.healthy ? secondary.getYawRad(sampleTimestamp) : Double.NaN;
+      fuseSample(sampleTimestamp, primaryYawRad, secondaryYawRad);
+      inputs.odometryYawTimestamps[i] = sampleTimestamp;
+      inputs.odometryYawPositionsRad[i] = fusedYawRad;
+    }
+    if (reference == null) {
+      // Restart from the first healthy gyro, the heading falls back to kinematics meanwhile
+      initialized = false;
+      lastPrimaryYawRad = Double.NaN;
+      lastSecondaryYawRad = Double.NaN;
+    }
+
+    inputs.connected = reference != null;
+    inputs.yawPosition = new Rotation2d(fusedYawRad);
+    inputs.yawVelocityRadPerSec =
+        reference != null ? reference.inputs.yawVelocityRadPerSec : 0.0;
+    inputs.odometryYawDroppedSamples =
+        primary.inputs.odometryYawDroppedSamples + secondary.inputs.odometryYawDroppedSamples;
+
+    Logger.recordOutput("Drive/GyroFusion/PrimaryHealthy", primary.healthy);
+    Logger.recordOutput("Drive/GyroFusion/SecondaryHealthy", secondary.healthy);
+    Logger.recordOutput(
+        "Drive/GyroFusion/ActiveSource",
+        reference == primary ? "Primary" : reference == secondary ? "Secondary" : "None");
+    Logger.recordOutput("Drive/GyroFusion/BiasRad", biasRad);
+    Logger.recordOutput("Drive/GyroFusion/DisagreementRad", disagreementRad);
+  }
+
+  /**
+   * Advances the fused heading to one sample time.
+   *
+   * @param timestamp The sample time.
+   * @param primaryYawRad The primary heading, or NaN if the primary is unhealthy.
+   * @param secondaryYawRad The secondary heading, or NaN if the secondary is unhealthy.
+   */
+  private void fuseSample(double timestamp, double primaryYawRad, double secondaryYawRad) {
+    boolean hasPrimary = !Double.isNaN(primaryYawRad);
+    boolean hasSecondary = !Double.isNaN(secondaryYawRad);
+    double dt = timestamp - lastTimestamp;
+    lastTimestamp = timestamp;
+
+    // Learn the offset of the secondary while both agree on being healthy
+    if (hasPrimary && hasSecondary) {
+      disagreementRad = MathUtil.angleModulus(secondaryYawRad - primaryYawRad - biasRad);
+      if (initialized && dt > 0.0) {
+        biasRad =
+            MathUtil.angleModulus(
+                biasRad + disagreementRad * Math.min(dt / BIAS_TIME_CONSTANT, 1.0));
+      } else if (!initialized) {
+        biasRad = MathUtil.angleModulus(secondaryYawRad - primaryYawRad);
+        disagreementRad = 0.0;
+      }
+    }
+    double targetYawRad =
+        hasPrimary ? primaryYawRad : MathUtil.angleModulus(secondaryYawRad - biasRad);
+
+    if (!initialized) {
+      fusedYawRad = targetYawRad;
+      initialized = true;
+    } else {
+      // Integrate the blended increments of the gyros that were healthy for the whole step
+      boolean usePrimary = hasPrimary && !Double.isNaN(lastPrimaryYawRad);
+      boolean useSecondary = hasSecondary && !Double.isNaN(lastSecondaryYawRad);
+      double primaryWeight = usePrimary ? 1.0 - SECONDARY_WEIGHT : 0.0;
+      double secondaryWeight = useSecondary ? SECONDARY_WEIGHT : 0.0;
+      double totalWeight = primaryWeight + secondaryWeight;
+      if (totalWeight > 0.0) {
+        double increment = 0.0;
+        if (usePrimary) {
+          increment += primaryWeight * MathUtil.angleModulus(primaryYawRad - lastPrimaryYawRad);
+        }
+        if (useSecondary) {
+          increment +=
+              secondaryWeight * MathUtil.angleModulus(secondaryYawRad - lastSecondaryYawRad);
+        }
+        fusedYawRad += increment / totalWeight;
+      }
+
+      // Pull slowly towards the reference heading, so the increments cannot drift
+      if (dt > 0.0) {
+        fusedYawRad +=
+            MathUtil.angleModulus(targetYawRad - fusedYawRad)
+                * Math.min(dt / PULL_TIME_CONSTANT, 1.0);
+      }
+      fusedYawRad = MathUtil.angleModulus(fusedYawRad);
+    }
+    lastPrimaryYawRad = primaryYawRad;
+    lastSecondaryYawRad = secondaryYawRad;
+  }
+}
@@ -13,21 +13,51 @@
 
 package frc.robot.subsystems.drive;
 
+import com.kauailabs.navx.AHRSProtocol.AHRSUpdateBase;
 import com.kauailabs.navx.frc.AHRS;
+import com.kauailabs.navx.frc.ITimestampedDataSubscriber;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.util.Units;
+import edu.wpi.first.wpilibj.RobotController;
 import edu.wpi.first.wpilibj.SPI;
-import java.util.Queue;
 
-/** IO implementation for NavX. */
-public class GyroIONavX implements GyroIO {
+/**
+ * IO implementation for NavX.
+ *
+ * <p>Odometry yaw samples are pushed by the AHRS data callback on the NavX IO thread as each update
+ * arrives, instead of being polled by the odometry thread. Each sample is timestamped with the
+ * sensor's own clock, converted to FPGA time by a {@link ClockOffsetEstimator}, so Drive can
+ * resample the heading at the exact times of the module samples.
+ */
+public class GyroIONavX implements GyroIO, ITimestampedDataSubscriber {
   private final AHRS navX = new AHRS(SPI.Port.kMXP, (byte) Drive.ODOMETRY_FREQUENCY);
-  private final Queue<Double> yawPositionQueue;
-  private final Queue<Double> yawTimestampQueue;
+  private final OdometrySequence sequence = new OdometrySequence();
+  private final ClockOffsetEstimator clockOffset = new ClockOffsetEstimator(); // IO thread only
+  private final DoubleRingBuffer yawPositionQueue;
+  private final DoubleRingBuffer yawTimestampQueue;
+  private final double[] yawPositionSamples;
+  private final double[] yawTimestampSamples;
+  private final SampleArrays.SwapBuffer yawPositionBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer yawTimestampBuffer = new SampleArrays.SwapBuffer();
 
   public GyroIONavX() {
-    yawTimestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue();
-    yawPositionQueue = PhoenixOdometryThread.getInstance().registerSignal(navX::getYaw);
+    int capacity = PhoenixOdometryThread.getQueueCapacity(Drive.ODOMETRY_FREQUENCY);
+    yawPositionQueue = new DoubleRingBuffer(capacity, sequence);
+    yawTimestampQueue = new DoubleRingBuffer(capacity, sequence);
+    yawPositionSamples = new double[yawPositionQueue.getCapacity()];
+    yawTimestampSamples = new double[yawTimestampQueue.getCapacity()];
+    navX.registerCallback(this, null);
+  }
+
+  /** Called on the NavX IO thread for every update received from the sensor. */
+  @Override
+  public void timestampedDataReceived(
+      long systemTimestamp, long sensorTimestamp, AHRSUpdateBase data, Object context) {
+    double receiveTimestamp = RobotController.getFPGATime() / 1e6;
+    double sensorTime = sensorTimestamp / 1000.0;
+    yawPositionQueue.put(data.yaw);
+    yawTimestampQueue.put(sensorTime + clockOffset.update(receiveTimestamp, sensorTime));
+    sequence.publish();
   }
 
   @Override
@@ -36,13 +66,16 @@ public class GyroIONavX implements GyroIO {
     inputs.yawPosition = Rotation2d.fromDegrees(-navX.getYaw());
     inputs.yawVelocityRadPerSec = Units.degreesToRadians(-navX.getRawGyroZ());
 
+    // This sequence is only written by the NavX callback, so it is latched here
+    sequence.latch();
+    int timestampCount = yawTimestampQueue.drainTo(yawTimestampSamples);
+    int positionCount = yawPositionQueue.drainTo(yawPositionSamples);
+    int sampleCount = Math.min(timestampCount, positionCount);
+    inputs.odometryYawDroppedSamples = yawPositionQueue.getDroppedCount();
     inputs.odometryYawTimestamps =
-        yawTimestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    inputs.odometryYawPositions =
-        yawPositionQueue.stream()
-            .map((Double value) -> Rotation2d.fromDegrees(-value))
-            .toArray(Rotation2d[]::new);
-    yawTimestampQueue.clear();
-    yawPositionQueue.clear();
+        yawTimestampBuffer.copyNewest(yawTimestampSamples, timestampCount, sampleCount);
+    inputs.odometryYawPositionsRad =
+        yawPositionBuffer.copyNewest(
+            yawPositionSamples, positionCount, sampleCount, -Math.PI / 180.0);
   }
 }
@@ -13,8 +13,6 @@
 
 package frc.robot.subsystems.drive;
 
-import com.ctre.phoenix6.BaseStatusSignal;
-import com.ctre.phoenix6.StatusCode;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.configs.Pigeon2Configuration;
 import com.ctre.phoenix6.hardware.Pigeon2;
@@ -23,7 +21,6 @@ import edu.wpi.first.math.util.Units;
 import edu.wpi.first.units.measure.Angle;
 import edu.wpi.first.units.measure.AngularVelocity;
 import frc.robot.generated.TunerConstants;
-import java.util.Queue;
 
 /** IO implementation for Pigeon 2. */
 public class GyroIOPigeon2 implements GyroIO {
@@ -32,33 +29,51 @@ public class GyroIOPigeon2 implements GyroIO {
           TunerConstants.DrivetrainConstants.Pigeon2Id,
           TunerConstants.DrivetrainConstants.CANBusName);
   private final StatusSignal<Angle> yaw = pigeon.getYaw();
-  private final Queue<Double> yawPositionQueue;
-  private final Queue<Double> yawTimestampQueue;
+  private final DoubleRingBuffer yawPositionQueue;
+  private final DoubleRingBuffer yawTimestampQueue;
+  private final double[] yawPositionSamples;
+  private final double[] yawTimestampSamples;
+  private final SampleArrays.SwapBuffer yawPositionBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer yawTimestampBuffer = new SampleArrays.SwapBuffer();
   private final StatusSignal<AngularVelocity> yawVelocity = pigeon.getAngularVelocityZWorld();
+  private final PhoenixSignalBatch.Slice signals;
 
   public GyroIOPigeon2() {
-    pigeon.getConfigurator().apply(new Pigeon2Configuration());
-    pigeon.getConfigurator().setYaw(0.0);
-    yaw.setUpdateFrequency(Drive.ODOMETRY_FREQUENCY);
-    yawVelocity.setUpdateFrequency(50.0);
-    pigeon.optimizeBusUtilization();
-    yawTimestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue();
-    yawPositionQueue = PhoenixOdometryThread.getInstance().registerSignal(pigeon.getYaw());
+    PhoenixConfigurator.getInstance()
+        .configure(
+            "Pigeon " + Integer.toString(TunerConstants.DrivetrainConstants.Pigeon2Id),
+            () -> pigeon.getConfigurator().apply(new Pigeon2Configuration(), 0.25),
+            () -> pigeon.getConfigurator().setYaw(0.0, 0.25),
+            () -> yaw.setUpdateFrequency(Drive.ODOMETRY_FREQUENCY),
+            () -> yawVelocity.setUpdateFrequency(50.0),
+            () -> pigeon.optimizeBusUtilization());
+    yawPositionQueue =
+        PhoenixOdometryThread.getInstance().registerSignal(TunerConstants.kCANBus, yaw);
+    yawTimestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue(yaw);
+    yawPositionSamples = new double[yawPositionQueue.getCapacity()];
+    yawTimestampSamples = new double[yawTimestampQueue.getCapacity()];
+    signals = PhoenixSignalBatch.getInstance().register(TunerConstants.kCANBus, yaw, yawVelocity);
   }
 
   @Override
   public void updateInputs(GyroIOInputs inputs) {
-    inputs.connected = BaseStatusSignal.refreshAll(yaw, yawVelocity).equals(StatusCode.OK);
+    inputs.connected = signals.refresh();
     inputs.yawPosition = Rotation2d.fromDegrees(yaw.getValueAsDouble());
     inputs.yawVelocityRadPerSec = Units.degreesToRadians(yawVelocity.getValueAsDouble());
 
+    int timestampCount = yawTimestampQueue.drainTo(yawTimestampSamples);
+    int positionCount = yawPositionQueue.drainTo(yawPositionSamples);
+    int sampleCount = Math.min(timestampCount, positionCount);
+    inputs.odometryYawDroppedSamples = yawPositionQueue.getDroppedCount();
     inputs.odometryYawTimestamps =
-        yawTimestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    inputs.odometryYawPositions =
-        yawPositionQueue.stream()
-            .map((Double value) -> Rotation2d.fromDegrees(value))
-            .toArray(Rotation2d[]::new);
-    yawTimestampQueue.clear();
-    yawPositionQueue.clear();
+        yawTimestampBuffer.copyNewest(yawTimestampSamples, timestampCount, sampleCount);
+    inputs.odometryYawPositionsRad =
+        yawPositionBuffer.copyNewest(
+            yawPositionSamples, positionCount, sampleCount, Math.PI / 180.0);
+  }
+
+  @Override
+  public DoubleRingBuffer getOdometryYawQueue() {
+    return yawPositionQueue;
   }
 }
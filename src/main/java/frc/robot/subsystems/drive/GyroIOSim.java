@@ -0,0 +1,42 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/** IO implementation for a simulated gyro, reading the heading of a {@link ChassisSim}. */
+public class GyroIOSim implements GyroIO {
+  private final ChassisSim chassisSim;
+  private final double[] yawTimestampSamples = new double[ModuleIOSim.SUBSTEP_COUNT];
+  private final double[] yawPositionSamples = new double[ModuleIOSim.SUBSTEP_COUNT];
+  private final SampleArrays.SwapBuffer yawTimestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer yawPositionBuffer = new SampleArrays.SwapBuffer();
+
+  public GyroIOSim(ChassisSim chassisSim) {
+    this.chassisSim = chassisSim;
+  }
+
+  @Override
+  public void updateInputs(GyroIOInputs inputs) {
+    inputs.connected = true;
+    inputs.yawPosition = new Rotation2d(chassisSim.getYawRad());
+    inputs.yawVelocityRadPerSec = chassisSim.getYawVelocityRadPerSec();
+
+    int sampleCount = chassisSim.drainYawSamples(yawTimestampSamples, yawPositionSamples);
+    inputs.odometryYawTimestamps =
+        yawTimestampBuffer.copyNewest(yawTimestampSamples, sampleCount, sampleCount);
+    inputs.odometryYawPositionsRad =
+        yawPositionBuffer.copyNewest(yawPositionSamples, sampleCount, sampleCount);
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Gyro IO wrapper that injects the CAN faults of a {@link FaultProfile} into the inputs of another
+ * (simulated) gyro IO.
+ */
+public class GyroIOWithFaults implements GyroIO {
+  private final GyroIO io;
+  private final FaultInjector<GyroIOInputs> injector;
+  private GyroIOInputs latest = new GyroIOInputs();
+  private final SampleArrays.SwapBuffer yawTimestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer yawPositionBuffer = new SampleArrays.SwapBuffer();
+
+  public GyroIOWithFaults(GyroIO io, FaultProfile profile, long seed) {
+    this.io = io;
+    injector = new FaultInjector<>(profile, seed, Timer.getFPGATimestamp(), 1, GyroIOInputs::new);
+  }
+
+  @Override
+  public void updateInputs(GyroIOInputs inputs) {
+    double timestamp = Timer.getFPGATimestamp();
+    GyroIOInputs snapshot = injector.acquireSnapshot();
+    io.updateInputs(snapshot);
+    for (int i = 0; i < snapshot.odometryYawTimestamps.length; i++) {
+      injector.offerSample(snapshot.odometryYawTimestamps[i], snapshot.odometryYawPositionsRad[i]);
+    }
+    long yawDroppedSamples = snapshot.odometryYawDroppedSamples;
+    injector.offerSnapshot(snapshot, timestamp);
+
+    // Report the newest snapshot that has arrived, the last one is held while none arrives
+    GyroIOInputs arrived = injector.pollSnapshot(timestamp);
+    if (arrived != null) {
+      latest = arrived;
+    }
+    inputs.connected = !injector.isDisconnected(timestamp) && latest.connected;
+    inputs.yawPosition = latest.yawPosition;
+    inputs.yawVelocityRadPerSec = latest.yawVelocityRadPerSec;
+
+    // Report the odometry samples that have arrived, with their measurement timestamps
+    int sampleCount = injector.countArrivedSamples(timestamp);
+    inputs.odometryYawTimestamps = yawTimestampBuffer.next(sampleCount);
+    inputs.odometryYawPositionsRad = yawPositionBuffer.next(sampleCount);
+    injector.takeSamples(
+        sampleCount, inputs.odometryYawTimestamps, inputs.odometryYawPositionsRad);
+    inputs.odometryYawDroppedSamples = yawDroppedSamples + injector.getDroppedCount();
+  }
+}
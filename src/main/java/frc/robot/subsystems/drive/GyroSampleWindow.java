@@ -0,0 +1,84 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import java.util.Arrays;
+
+/**
+ * The odometry samples of a gyro for one cycle, preceded by the newest sample of the last cycle,
+ * so times just before the first new sample are interpolated rather than extrapolated. The arrays
+ * are reused between cycles and are valid up to {@link #getCount()}.
+ */
+class GyroSampleWindow {
+  private double[] timestamps = new double[] {};
+  private double[] yawsRad = new double[] {};
+  private int keptCount = 0;
+  private int count = 0;
+
+  /**
+   * Replaces the samples with the new samples of this cycle, after the newest old sample if it is
+   * strictly older than the new ones.
+   *
+   * @return Whether there were any new samples. If not, the old samples are kept.
+   */
+  boolean update(double[] newTimestamps, double[] newYawsRad) {
+    int newCount = Math.min(newTimestamps.length, newYawsRad.length);
+    if (newCount == 0) {
+      keptCount = count;
+      return false;
+    }
+    keptCount = count > 0 && timestamps[count - 1] < newTimestamps[0] ? 1 : 0;
+    if (timestamps.length < keptCount + newCount) {
+      timestamps = Arrays.copyOf(timestamps, keptCount + newCount);
+      yawsRad = Arrays.copyOf(yawsRad, keptCount + newCount);
+    }
+    if (keptCount > 0) {
+      timestamps[0] = timestamps[count - 1];
+      yawsRad[0] = yawsRad[count - 1];
+    }
+    System.arraycopy(newTimestamps, 0, timestamps, keptCount, newCount);
+    System.arraycopy(newYawsRad, 0, yawsRad, keptCount, newCount);
+    count = keptCount + newCount;
+    return true;
+  }
+
+  /** Removes all samples, e.g. while the gyro is disconnected. */
+  void clear() {
+    keptCount = 0;
+    count = 0;
+  }
+
+  double[] getTimestamps() {
+    return timestamps;
+  }
+
+  double[] getYawsRad() {
+    return yawsRad;
+  }
+
+  /** Returns the number of valid samples, including the kept one. */
+  int getCount() {
+    return count;
+  }
+
+  /** Returns the number of old samples before the new ones, 0 or 1. */
+  int getKeptCount() {
+    return keptCount;
+  }
+
+  /** Returns the heading at the given time, interpolated between the samples. */
+  double getYawRad(double timestamp) {
+    return OdometryInterpolation.interpolateAngle(timestamps, yawsRad, count, timestamp);
+  }
+}
@@ -20,23 +20,31 @@ import edu.wpi.first.math.kinematics.SwerveModuleState;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.Alert;
 import edu.wpi.first.wpilibj.Alert.AlertType;
+import java.util.Arrays;
 import org.littletonrobotics.junction.Logger;
 
 public class Module {
   private final ModuleIO io;
-  private final ModuleIOInputsAutoLogged inputs = new ModuleIOInputsAutoLogged();
+  private final ModuleIOInputsLogged inputs = new ModuleIOInputsLogged();
   private final int index;
   private final SwerveModuleConstants constants;
 
   private final Alert driveDisconnectedAlert;
   private final Alert turnDisconnectedAlert;
   private final Alert turnEncoderDisconnectedAlert;
-  private SwerveModulePosition[] odometryPositions = new SwerveModulePosition[] {};
+  private final Alert odometryMisalignedAlert;
+  private final String inputsKey;
+
+  // Odometry samples for this cycle, reused between cycles and valid up to the sample count
+  private int odometrySampleCount = 0;
+  private double[] odometryDrivePositionsMeters = new double[] {};
+  private double[] odometryTurnPositionsRad = new double[] {};
 
   public Module(ModuleIO io, int index, SwerveModuleConstants constants) {
     this.io = io;
     this.index = index;
     this.constants = constants;
+    inputsKey = "Drive/Module" + Integer.toString(index);
     driveDisconnectedAlert =
         new Alert(
             "Disconnected drive motor on module " + Integer.toString(index) + ".",
@@ -48,19 +56,51 @@ public class Module {
         new Alert(
             "Disconnected turn encoder on module " + Integer.toString(index) + ".",
             AlertType.kError);
+    odometryMisalignedAlert =
+        new Alert(
+            "Misaligned odometry samples on module " + Integer.toString(index) + ".",
+            AlertType.kWarning);
   }
 
   public void periodic() {
     io.updateInputs(inputs);
-    Logger.processInputs("Drive/Module" + Integer.toString(index), inputs);
+    Logger.processInputs(inputsKey, inputs);
 
     // Calculate positions for odometry
+    odometryMisalignedAlert.set(!alignOdometryInputs());
     int sampleCount = inputs.odometryTimestamps.length; // All signals are sampled together
-    odometryPositions = new SwerveModulePosition[sampleCount];
-    for (int i = 0; i < sampleCount; i++) {
-      double positionMeters = inputs.odometryDrivePositionsRad[i] * constants.WheelRadius;
-      Rotation2d angle = inputs.odometryTurnPositions[i];
-      odometryPositions[i] = new SwerveModulePosition(positionMeters, angle);
+    if (odometryDrivePositionsMeters.length < sampleCount) {
+      odometryDrivePositionsMeters = new double[sampleCount];
+      odometryTurnPositionsRad = new double[sampleCount];
+    }
+    odometrySampleCount = sampleCount;
+    if (inputs.odometryDriveTimestamps.length == sampleCount
+        && inputs.odometryTurnTimestamps.length == sampleCount) {
+      // Resample the drive and turn signals from their own measurement times to the common
+      // sample times, so every module and the gyro describe the same instant
+      for (int i = 0; i < sampleCount; i++) {
+        double timestamp = inputs.odometryTimestamps[i];
+        odometryDrivePositionsMeters[i] =
+            OdometryInterpolation.interpolate(
+                    inputs.odometryDriveTimestamps,
+                    inputs.odometryDrivePositionsRad,
+                    sampleCount,
+                    timestamp)
+                * constants.WheelRadius;
+        odometryTurnPositionsRad[i] =
+            OdometryInterpolation.interpolateAngle(
+                inputs.odometryTurnTimestamps,
+                inputs.odometryTurnPositionsRad,
+                sampleCount,
+                timestamp);
+      }
+    } else {
+      // Logs without per-signal timestamps, use the samples as-is
+      for (int i = 0; i < sampleCount; i++) {
+        odometryDrivePositionsMeters[i] =
+            inputs.odometryDrivePositionsRad[i] * constants.WheelRadius;
+        odometryTurnPositionsRad[i] = inputs.odometryTurnPositionsRad[i];
+      }
     }
 
     // Update alerts
@@ -69,6 +109,50 @@ public class Module {
     turnEncoderDisconnectedAlert.set(!inputs.turnEncoderConnected);
   }
 
+  /**
+   * Checks that every odometry stream has the same number of samples. If not, trims every stream
+   * to its newest common samples, since all streams end at the same latched sample.
+   *
+   * @return True if the streams were already aligned.
+   */
+  private boolean alignOdometryInputs() {
+    int sampleCount =
+        Math.min(
+            inputs.odometryTimestamps.length,
+            Math.min(
+                inputs.odometryDrivePositionsRad.length, inputs.odometryTurnPositionsRad.length));
+    boolean hasDriveTimestamps = inputs.odometryDriveTimestamps.length > 0;
+    boolean hasTurnTimestamps = inputs.odometryTurnTimestamps.length > 0;
+    if (hasDriveTimestamps) {
+      sampleCount = Math.min(sampleCount, inputs.odometryDriveTimestamps.length);
+    }
+    if (hasTurnTimestamps) {
+      sampleCount = Math.min(sampleCount, inputs.odometryTurnTimestamps.length);
+    }
+    boolean aligned =
+        inputs.odometryTimestamps.length == sampleCount
+            && inputs.odometryDrivePositionsRad.length == sampleCount
+            && inputs.odometryTurnPositionsRad.length == sampleCount
+            && (!hasDriveTimestamps || inputs.odometryDriveTimestamps.length == sampleCount)
+            && (!hasTurnTimestamps || inputs.odometryTurnTimestamps.length == sampleCount);
+    if (!aligned) {
+      inputs.odometryTimestamps = newest(inputs.odometryTimestamps, sampleCount);
+      inputs.odometryDrivePositionsRad = newest(inputs.odometryDrivePositionsRad, sampleCount);
+      inputs.odometryTurnPositionsRad = newest(inputs.odometryTurnPositionsRad, sampleCount);
+      if (hasDriveTimestamps) {
+        inputs.odometryDriveTimestamps = newest(inputs.odometryDriveTimestamps, sampleCount);
+      }
+      if (hasTurnTimestamps) {
+        inputs.odometryTurnTimestamps = newest(inputs.odometryTurnTimestamps, sampleCount);
+      }
+    }
+    return aligned;
+  }
+
+  private static double[] newest(double[] samples, int count) {
+    return Arrays.copyOfRange(samples, samples.length - count, samples.length);
+  }
+
   /** Runs the module with the specified setpoint state. Mutates the state to optimize it. */
   public void runSetpoint(SwerveModuleState state) {
     // Optimize velocity setpoint
@@ -107,6 +191,11 @@ public class Module {
     return inputs.driveVelocityRadPerSec * constants.WheelRadius;
   }
 
+  /** Returns the number of repeated control requests to this module that were not sent. */
+  public long getSuppressedControlFrames() {
+    return inputs.suppressedControlFrames;
+  }
+
   /** Returns the module position (turn angle and drive position). */
   public SwerveModulePosition getPosition() {
     return new SwerveModulePosition(getPositionMeters(), getAngle());
@@ -117,9 +206,25 @@ public class Module {
     return new SwerveModuleState(getVelocityMetersPerSec(), getAngle());
   }
 
-  /** Returns the module positions received this cycle. */
-  public SwerveModulePosition[] getOdometryPositions() {
-    return odometryPositions;
+  /** Returns the number of odometry samples received this cycle. */
+  public int getOdometrySampleCount() {
+    return odometrySampleCount;
+  }
+
+  /**
+   * Returns the drive positions in meters of the samples received this cycle. The array is reused
+   * between cycles; only the first {@link #getOdometrySampleCount()} entries are valid.
+   */
+  public double[] getOdometryDrivePositionsMeters() {
+    return odometryDrivePositionsMeters;
+  }
+
+  /**
+   * Returns the turn angles in radians of the samples received this cycle. The array is reused
+   * between cycles; only the first {@link #getOdometrySampleCount()} entries are valid.
+   */
+  public double[] getOdometryTurnPositionsRad() {
+    return odometryTurnPositionsRad;
   }
 
   /** Returns the timestamps of the samples received this cycle. */
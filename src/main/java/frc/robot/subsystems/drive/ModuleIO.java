@@ -35,7 +35,13 @@ public interface ModuleIO {
 
     public double[] odometryTimestamps = new double[] {};
     public double[] odometryDrivePositionsRad = new double[] {};
-    public Rotation2d[] odometryTurnPositions = new Rotation2d[] {};
+    public double[] odometryDriveTimestamps = new double[] {};
+    public double[] odometryTurnPositionsRad = new double[] {};
+    public double[] odometryTurnTimestamps = new double[] {};
+    public long odometryDriveDroppedSamples = 0;
+    public long odometryTurnDroppedSamples = 0;
+
+    public long suppressedControlFrames = 0;
   }
 
   /** Updates the set of loggable inputs. */
@@ -52,4 +58,20 @@ public interface ModuleIO {
 
   /** Run the turn motor to the specified rotation. */
   public default void setTurnPosition(Rotation2d rotation) {}
+
+  /**
+   * Returns the buffer the odometry thread writes drive positions to (in rotations), for
+   * integrating odometry on that thread, or null if this implementation does not use it.
+   */
+  public default DoubleRingBuffer getOdometryDrivePositionQueue() {
+    return null;
+  }
+
+  /**
+   * Returns the buffer the odometry thread writes turn positions to (in rotations), for
+   * integrating odometry on that thread, or null if this implementation does not use it.
+   */
+  public default DoubleRingBuffer getOdometryTurnPositionQueue() {
+    return null;
+  }
 }
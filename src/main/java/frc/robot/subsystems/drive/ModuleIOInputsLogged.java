@@ -0,0 +1,35 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import org.littletonrobotics.junction.LogTable;
+
+/**
+ * Logged module inputs that can also replay logs recorded before odometry turn samples were logged
+ * as radians, when they were logged as a Rotation2d array under the key "OdometryTurnPositions".
+ */
+public class ModuleIOInputsLogged extends ModuleIOInputsAutoLogged {
+  @Override
+  public void fromLog(LogTable table) {
+    super.fromLog(table);
+    if (table.get("OdometryTurnPositionsRad", (double[]) null) == null) {
+      Rotation2d[] legacyPositions = table.get("OdometryTurnPositions", new Rotation2d[] {});
+      odometryTurnPositionsRad = new double[legacyPositions.length];
+      for (int i = 0; i < legacyPositions.length; i++) {
+        odometryTurnPositionsRad[i] = legacyPositions[i].getRadians();
+      }
+    }
+  }
+}
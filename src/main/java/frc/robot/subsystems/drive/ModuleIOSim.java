@@ -26,6 +26,14 @@ import edu.wpi.first.wpilibj.simulation.DCMotorSim;
 /**
  * Physics sim implementation of module IO. The sim models are configured using a set of module
  * constants from Phoenix. Simulation is always based on voltage control.
+ *
+ * <p>With sub-stepping enabled, the physics and the closed-loop control (which runs on the motor
+ * controller on the real robot) advance at the odometry frequency, and every sub-step produces one
+ * timestamped odometry sample, like the odometry thread on the real robot.
+ *
+ * <p>When attached to a {@link ChassisSim}, the chassis steps the module instead, and the drive
+ * wheel is loaded by the robot: it rolls with the ground until the drive force exceeds the wheel
+ * friction, and then slips.
  */
 public class ModuleIOSim implements ModuleIO {
   // TunerConstants doesn't support separate sim constants, so they are declared locally
@@ -39,19 +47,60 @@ public class ModuleIOSim implements ModuleIO {
   private static final double TURN_KD = 0.0;
   private static final DCMotor DRIVE_GEARBOX = DCMotor.getKrakenX60Foc(1);
   private static final DCMotor TURN_GEARBOX = DCMotor.getKrakenX60Foc(1);
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  static final boolean SUBSTEP_ODOMETRY = true; // Otherwise one step and sample per loop
+  static final int SUBSTEP_COUNT =
+      SUBSTEP_ODOMETRY
+          ? Math.max((int) Math.round(LOOP_PERIOD_SECS * Drive.ODOMETRY_FREQUENCY), 1)
+          : 1;
+  static final double SUBSTEP_PERIOD_SECS = LOOP_PERIOD_SECS / SUBSTEP_COUNT;
 
   private final DCMotorSim driveSim;
   private final DCMotorSim turnSim;
 
   private boolean driveClosedLoop = false;
   private boolean turnClosedLoop = false;
-  private PIDController driveController = new PIDController(DRIVE_KP, 0, DRIVE_KD);
-  private PIDController turnController = new PIDController(TURN_KP, 0, TURN_KD);
+  private PIDController driveController =
+      new PIDController(DRIVE_KP, 0, DRIVE_KD, SUBSTEP_PERIOD_SECS);
+  private PIDController turnController =
+      new PIDController(TURN_KP, 0, TURN_KD, SUBSTEP_PERIOD_SECS);
   private double driveFFVolts = 0.0;
   private double driveAppliedVolts = 0.0;
   private double turnAppliedVolts = 0.0;
 
+  // Drive wheel when attached to a chassis, at the mechanism
+  private final ChassisSim chassisSim;
+  private final double wheelRadius;
+  private final double driveGearRatio;
+  private final double driveInertia;
+  private final double slipCurrent;
+  private double wheelPositionRad = 0.0;
+  private double wheelVelocityRadPerSec = 0.0;
+  private double driveCurrentAmps = 0.0;
+  private boolean wheelSlipping = false;
+
+  // Odometry samples recorded by the chassis
+  private final double[] timestampSamples = new double[SUBSTEP_COUNT];
+  private final double[] drivePositionSamples = new double[SUBSTEP_COUNT];
+  private final double[] turnPositionSamples = new double[SUBSTEP_COUNT];
+  private int sampleCount = 0;
+  private final SampleArrays.SwapBuffer timestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer drivePositionBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer turnPositionBuffer = new SampleArrays.SwapBuffer();
+
+  /** Creates a module that simulates its motors unloaded. */
   public ModuleIOSim(SwerveModuleConstants constants) {
+    this(constants, null);
+  }
+
+  /** Creates a module that drives the given chassis, or is unloaded if it is null. */
+  public ModuleIOSim(SwerveModuleConstants constants, ChassisSim chassisSim) {
+    this.chassisSim = chassisSim;
+    wheelRadius = constants.WheelRadius;
+    driveGearRatio = constants.DriveMotorGearRatio;
+    driveInertia = constants.DriveInertia;
+    slipCurrent = constants.SlipCurrent;
+
     // Create drive and turn sim models
     driveSim =
         new DCMotorSim(
@@ -66,35 +115,42 @@ public class ModuleIOSim implements ModuleIO {
 
     // Enable wrapping for turn PID
     turnController.enableContinuousInput(-Math.PI, Math.PI);
+
+    // Attach to the chassis
+    if (chassisSim != null) {
+      chassisSim.addModule(this, constants.LocationX, constants.LocationY);
+    }
   }
 
   @Override
   public void updateInputs(ModuleIOInputs inputs) {
-    // Run closed-loop control
-    if (driveClosedLoop) {
-      driveAppliedVolts =
-          driveFFVolts + driveController.calculate(driveSim.getAngularVelocityRadPerSec());
-    } else {
-      driveController.reset();
-    }
-    if (turnClosedLoop) {
-      turnAppliedVolts = turnController.calculate(turnSim.getAngularPositionRad());
-    } else {
-      turnController.reset();
+    // Step the physics over the last loop, unless the chassis already did
+    if (chassisSim == null) {
+      double loopTimestamp = Timer.getFPGATimestamp();
+      for (int i = 0; i < SUBSTEP_COUNT; i++) {
+        step();
+        recordSample(i, loopTimestamp - (SUBSTEP_COUNT - 1 - i) * SUBSTEP_PERIOD_SECS);
+      }
     }
 
-    // Update simulation state
-    driveSim.setInputVoltage(MathUtil.clamp(driveAppliedVolts, -12.0, 12.0));
-    turnSim.setInputVoltage(MathUtil.clamp(turnAppliedVolts, -12.0, 12.0));
-    driveSim.update(0.02);
-    turnSim.update(0.02);
+    // Update odometry inputs, one sample per sub-step
+    inputs.odometryTimestamps =
+        timestampBuffer.copyNewest(timestampSamples, sampleCount, sampleCount);
+    inputs.odometryDrivePositionsRad =
+        drivePositionBuffer.copyNewest(drivePositionSamples, sampleCount, sampleCount);
+    inputs.odometryTurnPositionsRad =
+        turnPositionBuffer.copyNewest(turnPositionSamples, sampleCount, sampleCount);
+    inputs.odometryDriveTimestamps = inputs.odometryTimestamps;
+    inputs.odometryTurnTimestamps = inputs.odometryTimestamps;
+    sampleCount = 0;
 
     // Update drive inputs
     inputs.driveConnected = true;
-    inputs.drivePositionRad = driveSim.getAngularPositionRad();
-    inputs.driveVelocityRadPerSec = driveSim.getAngularVelocityRadPerSec();
+    inputs.drivePositionRad = getDrivePositionRad();
+    inputs.driveVelocityRadPerSec = getDriveVelocityRadPerSec();
     inputs.driveAppliedVolts = driveAppliedVolts;
-    inputs.driveCurrentAmps = Math.abs(driveSim.getCurrentDrawAmps());
+    inputs.driveCurrentAmps =
+        Math.abs(chassisSim != null ? driveCurrentAmps : driveSim.getCurrentDrawAmps());
 
     // Update turn inputs
     inputs.turnConnected = true;
@@ -104,11 +160,91 @@ public class ModuleIOSim implements ModuleIO {
     inputs.turnVelocityRadPerSec = turnSim.getAngularVelocityRadPerSec();
     inputs.turnAppliedVolts = turnAppliedVolts;
     inputs.turnCurrentAmps = Math.abs(turnSim.getCurrentDrawAmps());
+  }
+
+  /** Runs closed-loop control and advances the unloaded sim models by one sub-step. */
+  private void step() {
+    stepControl(SUBSTEP_PERIOD_SECS);
+    driveSim.setInputVoltage(MathUtil.clamp(driveAppliedVolts, -12.0, 12.0));
+    driveSim.update(SUBSTEP_PERIOD_SECS);
+  }
+
+  /** Runs closed-loop control and advances the turn sim model. Called each sub-step. */
+  void stepControl(double dt) {
+    // Run closed-loop control
+    if (driveClosedLoop) {
+      driveAppliedVolts = driveFFVolts + driveController.calculate(getDriveVelocityRadPerSec());
+    } else {
+      driveController.reset();
+    }
+    if (turnClosedLoop) {
+      turnAppliedVolts = turnController.calculate(turnSim.getAngularPositionRad());
+    } else {
+      turnController.reset();
+    }
+
+    // Update turn simulation state
+    turnSim.setInputVoltage(MathUtil.clamp(turnAppliedVolts, -12.0, 12.0));
+    turnSim.update(dt);
+  }
+
+  /**
+   * Advances the drive wheel on the ground by one sub-step. Called by the chassis.
+   *
+   * @param groundSpeed The ground speed at the module along the wheel, in meters per second.
+   * @param maxForce The friction limit of the wheel in newtons.
+   * @param dt The sub-step period in seconds.
+   * @return The force of the wheel on the ground along the wheel, in newtons.
+   */
+  double stepDrive(double groundSpeed, double maxForce, double dt) {
+    double volts = MathUtil.clamp(driveAppliedVolts, -12.0, 12.0);
+    driveCurrentAmps =
+        MathUtil.clamp(
+            DRIVE_GEARBOX.getCurrent(wheelVelocityRadPerSec * driveGearRatio, volts),
+            -slipCurrent,
+            slipCurrent);
+    double wheelTorque = DRIVE_GEARBOX.getTorque(driveCurrentAmps) * driveGearRatio;
+    double driveForce = wheelTorque / wheelRadius;
+
+    double force;
+    if (!wheelSlipping && Math.abs(driveForce) <= maxForce) {
+      // The wheel grips and rolls with the ground
+      force = driveForce;
+      wheelVelocityRadPerSec = groundSpeed / wheelRadius;
+    } else {
+      // The wheel slips, with kinetic friction against the slip, until the slip reverses
+      double slipSpeed = wheelVelocityRadPerSec * wheelRadius - groundSpeed;
+      force = Math.copySign(maxForce, wheelSlipping ? slipSpeed : driveForce);
+      wheelVelocityRadPerSec += (wheelTorque - force * wheelRadius) / driveInertia * dt;
+      double newSlipSpeed = wheelVelocityRadPerSec * wheelRadius - groundSpeed;
+      wheelSlipping = Math.signum(newSlipSpeed) == Math.signum(force);
+      if (!wheelSlipping) {
+        wheelVelocityRadPerSec = groundSpeed / wheelRadius;
+      }
+    }
+    wheelPositionRad += wheelVelocityRadPerSec * dt;
+    return force;
+  }
+
+  /** Records the odometry sample at the end of a sub-step. */
+  void recordSample(int index, double timestamp) {
+    timestampSamples[index] = timestamp;
+    drivePositionSamples[index] = getDrivePositionRad();
+    turnPositionSamples[index] = turnSim.getAngularPositionRad();
+    sampleCount = index + 1;
+  }
+
+  /** Returns the turn angle in radians. */
+  double getTurnAngleRad() {
+    return turnSim.getAngularPositionRad();
+  }
+
+  private double getDrivePositionRad() {
+    return chassisSim != null ? wheelPositionRad : driveSim.getAngularPositionRad();
+  }
 
-    // Update odometry inputs (50Hz because high-frequency odometry in sim doesn't matter)
-    inputs.odometryTimestamps = new double[] {Timer.getFPGATimestamp()};
-    inputs.odometryDrivePositionsRad = new double[] {inputs.drivePositionRad};
-    inputs.odometryTurnPositions = new Rotation2d[] {inputs.turnPosition};
+  private double getDriveVelocityRadPerSec() {
+    return chassisSim != null ? wheelVelocityRadPerSec : driveSim.getAngularVelocityRadPerSec();
   }
 
   @Override
@@ -13,8 +13,6 @@
 
 package frc.robot.subsystems.drive;
 
-import static frc.robot.util.PhoenixUtil.*;
-
 import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.configs.CANcoderConfiguration;
@@ -26,7 +24,6 @@ import com.ctre.phoenix6.controls.VelocityTorqueCurrentFOC;
 import com.ctre.phoenix6.controls.VelocityVoltage;
 import com.ctre.phoenix6.controls.VoltageOut;
 import com.ctre.phoenix6.hardware.CANcoder;
-import com.ctre.phoenix6.hardware.ParentDevice;
 import com.ctre.phoenix6.hardware.TalonFX;
 import com.ctre.phoenix6.signals.FeedbackSensorSourceValue;
 import com.ctre.phoenix6.signals.InvertedValue;
@@ -41,7 +38,6 @@ import edu.wpi.first.units.measure.AngularVelocity;
 import edu.wpi.first.units.measure.Current;
 import edu.wpi.first.units.measure.Voltage;
 import frc.robot.generated.TunerConstants;
-import java.util.Queue;
 
 /**
  * Module IO implementation for Talon FX drive motor controller, Talon FX turn motor controller, and
@@ -57,24 +53,34 @@ public class ModuleIOTalonFX implements ModuleIO {
   private final TalonFX turnTalon;
   private final CANcoder cancoder;
 
-  // Voltage control requests
-  private final VoltageOut voltageRequest = new VoltageOut(0);
+  // Voltage control requests (separate per motor, since requests may be staged until dispatch)
+  private final VoltageOut driveVoltageRequest = new VoltageOut(0);
+  private final VoltageOut turnVoltageRequest = new VoltageOut(0);
   private final PositionVoltage positionVoltageRequest = new PositionVoltage(0.0);
   private final VelocityVoltage velocityVoltageRequest = new VelocityVoltage(0.0);
 
   // Torque-current control requests
-  private final TorqueCurrentFOC torqueCurrentRequest = new TorqueCurrentFOC(0);
+  private final TorqueCurrentFOC driveTorqueCurrentRequest = new TorqueCurrentFOC(0);
+  private final TorqueCurrentFOC turnTorqueCurrentRequest = new TorqueCurrentFOC(0);
   private final PositionTorqueCurrentFOC positionTorqueCurrentRequest =
       new PositionTorqueCurrentFOC(0.0);
   private final VelocityTorqueCurrentFOC velocityTorqueCurrentRequest =
       new VelocityTorqueCurrentFOC(0.0);
 
+  // Repeated requests are not re-sent, see ControlRequestFilter
+  private final ControlDeadbands deadbands;
+
+  // Requests are sent together with the rest of the drivetrain
+  private final PhoenixControlDispatcher.Slot driveControl;
+  private final PhoenixControlDispatcher.Slot turnControl;
+
   // Timestamp inputs from Phoenix thread
-  private final Queue<Double> timestampQueue;
+  private final DoubleRingBuffer timestampQueue;
 
   // Inputs from drive motor
   private final StatusSignal<Angle> drivePosition;
-  private final Queue<Double> drivePositionQueue;
+  private final DoubleRingBuffer drivePositionQueue;
+  private final DoubleRingBuffer drivePositionTimestampQueue;
   private final StatusSignal<AngularVelocity> driveVelocity;
   private final StatusSignal<Voltage> driveAppliedVolts;
   private final StatusSignal<Current> driveCurrent;
@@ -82,24 +88,74 @@ public class ModuleIOTalonFX implements ModuleIO {
   // Inputs from turn motor
   private final StatusSignal<Angle> turnAbsolutePosition;
   private final StatusSignal<Angle> turnPosition;
-  private final Queue<Double> turnPositionQueue;
+  private final DoubleRingBuffer turnPositionQueue;
+  private final DoubleRingBuffer turnPositionTimestampQueue;
   private final StatusSignal<AngularVelocity> turnVelocity;
   private final StatusSignal<Voltage> turnAppliedVolts;
   private final StatusSignal<Current> turnCurrent;
 
+  // Main-loop signals of each device, refreshed in one batch for the drivetrain
+  private final PhoenixSignalBatch.Slice driveSignals;
+  private final PhoenixSignalBatch.Slice turnSignals;
+  private final PhoenixSignalBatch.Slice turnEncoderSignals;
+
+  // Scratch buffers for draining odometry samples
+  private final double[] timestampSamples;
+  private final double[] drivePositionSamples;
+  private final double[] drivePositionTimestampSamples;
+  private final double[] turnPositionSamples;
+  private final double[] turnPositionTimestampSamples;
+
+  // Logged odometry input arrays, alternated every loop
+  private final SampleArrays.SwapBuffer timestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer drivePositionBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer drivePositionTimestampBuffer =
+      new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer turnPositionBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer turnPositionTimestampBuffer =
+      new SampleArrays.SwapBuffer();
+
   // Connection debouncers
   private final Debouncer driveConnectedDebounce = new Debouncer(0.5);
   private final Debouncer turnConnectedDebounce = new Debouncer(0.5);
   private final Debouncer turnEncoderConnectedDebounce = new Debouncer(0.5);
 
+  /**
+   * Changes of a setpoint that are small enough to not re-send its control request. Each is the
+   * largest change that is still treated as a repeat, in the units of the request.
+   */
+  public static class ControlDeadbands {
+    public static final ControlDeadbands DEFAULT = new ControlDeadbands(1e-3, 1e-3, 1e-5);
+
+    /** Open loop output, in volts or amps. */
+    public final double openLoop;
+    /** Drive velocity, in rotations per second. */
+    public final double driveVelocity;
+    /** Turn position, in rotations. */
+    public final double turnPosition;
+
+    public ControlDeadbands(double openLoop, double driveVelocity, double turnPosition) {
+      this.openLoop = openLoop;
+      this.driveVelocity = driveVelocity;
+      this.turnPosition = turnPosition;
+    }
+  }
+
   public ModuleIOTalonFX(SwerveModuleConstants constants) {
+    this(constants, ControlDeadbands.DEFAULT);
+  }
+
+  public ModuleIOTalonFX(SwerveModuleConstants constants, ControlDeadbands deadbands) {
     this.constants = constants;
+    this.deadbands = deadbands;
     driveTalon = new TalonFX(constants.DriveMotorId, TunerConstants.DrivetrainConstants.CANBusName);
     turnTalon = new TalonFX(constants.SteerMotorId, TunerConstants.DrivetrainConstants.CANBusName);
     cancoder = new CANcoder(constants.CANcoderId, TunerConstants.DrivetrainConstants.CANBusName);
 
-    // Configure drive motor
-    var driveConfig = constants.DriveMotorInitialConfigs;
+    // Build drive motor config, from a copy of the initial configs since they are shared between
+    // modules and applied asynchronously
+    var driveConfig = new TalonFXConfiguration();
+    driveConfig.deserialize(constants.DriveMotorInitialConfigs.serialize());
     driveConfig.MotorOutput.NeutralMode = NeutralModeValue.Brake;
     driveConfig.Slot0 = constants.DriveMotorGains;
     driveConfig.Feedback.SensorToMechanismRatio = constants.DriveMotorGearRatio;
@@ -111,10 +167,8 @@ public class ModuleIOTalonFX implements ModuleIO {
         constants.DriveMotorInverted
             ? InvertedValue.Clockwise_Positive
             : InvertedValue.CounterClockwise_Positive;
-    tryUntilOk(5, () -> driveTalon.getConfigurator().apply(driveConfig, 0.25));
-    tryUntilOk(5, () -> driveTalon.setPosition(0.0, 0.25));
 
-    // Configure turn motor
+    // Build turn motor config
     var turnConfig = new TalonFXConfiguration();
     turnConfig.MotorOutput.NeutralMode = NeutralModeValue.Brake;
     turnConfig.Slot0 = constants.SteerMotorGains;
@@ -136,24 +190,30 @@ public class ModuleIOTalonFX implements ModuleIO {
         constants.SteerMotorInverted
             ? InvertedValue.Clockwise_Positive
             : InvertedValue.CounterClockwise_Positive;
-    tryUntilOk(5, () -> turnTalon.getConfigurator().apply(turnConfig, 0.25));
 
-    // Configure CANCoder
-    CANcoderConfiguration cancoderConfig = constants.CANcoderInitialConfigs;
+    // Build CANcoder config
+    var cancoderConfig = new CANcoderConfiguration();
+    cancoderConfig.deserialize(constants.CANcoderInitialConfigs.serialize());
     cancoderConfig.MagnetSensor.MagnetOffset = constants.CANcoderOffset;
     cancoderConfig.MagnetSensor.SensorDirection =
         constants.CANcoderInverted
             ? SensorDirectionValue.Clockwise_Positive
             : SensorDirectionValue.CounterClockwise_Positive;
-    cancoder.getConfigurator().apply(cancoderConfig);
+
+    // Register motors for the synchronized control dispatch
+    driveControl = PhoenixControlDispatcher.getInstance().register(driveTalon);
+    turnControl = PhoenixControlDispatcher.getInstance().register(turnTalon);
+    PhoenixControlDispatcher.getInstance().addTimesyncListener(this::setUseTimesync);
 
     // Create timestamp queue
-    timestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue();
+    timestampQueue = PhoenixOdometryThread.getInstance().makeTimestampQueue(TunerConstants.kCANBus);
 
     // Create drive status signals
     drivePosition = driveTalon.getPosition();
     drivePositionQueue =
-        PhoenixOdometryThread.getInstance().registerSignal(driveTalon.getPosition());
+        PhoenixOdometryThread.getInstance().registerSignal(TunerConstants.kCANBus, drivePosition);
+    drivePositionTimestampQueue =
+        PhoenixOdometryThread.getInstance().makeTimestampQueue(drivePosition);
     driveVelocity = driveTalon.getVelocity();
     driveAppliedVolts = driveTalon.getMotorVoltage();
     driveCurrent = driveTalon.getStatorCurrent();
@@ -161,102 +221,183 @@ public class ModuleIOTalonFX implements ModuleIO {
     // Create turn status signals
     turnAbsolutePosition = cancoder.getAbsolutePosition();
     turnPosition = turnTalon.getPosition();
-    turnPositionQueue = PhoenixOdometryThread.getInstance().registerSignal(turnTalon.getPosition());
+    turnPositionQueue =
+        PhoenixOdometryThread.getInstance().registerSignal(TunerConstants.kCANBus, turnPosition);
+    turnPositionTimestampQueue =
+        PhoenixOdometryThread.getInstance().makeTimestampQueue(turnPosition);
     turnVelocity = turnTalon.getVelocity();
     turnAppliedVolts = turnTalon.getMotorVoltage();
     turnCurrent = turnTalon.getStatorCurrent();
 
-    // Configure periodic frames
-    BaseStatusSignal.setUpdateFrequencyForAll(
-        Drive.ODOMETRY_FREQUENCY, drivePosition, turnPosition);
-    BaseStatusSignal.setUpdateFrequencyForAll(
-        50.0,
-        driveVelocity,
-        driveAppliedVolts,
-        driveCurrent,
-        turnAbsolutePosition,
-        turnVelocity,
-        turnAppliedVolts,
-        turnCurrent);
-    ParentDevice.optimizeBusUtilizationForAll(driveTalon, turnTalon);
+    // Create scratch buffers, sized to hold everything a queue can return
+    timestampSamples = new double[timestampQueue.getCapacity()];
+    drivePositionSamples = new double[drivePositionQueue.getCapacity()];
+    drivePositionTimestampSamples = new double[drivePositionTimestampQueue.getCapacity()];
+    turnPositionSamples = new double[turnPositionQueue.getCapacity()];
+    turnPositionTimestampSamples = new double[turnPositionTimestampQueue.getCapacity()];
+
+    // Apply configs and periodic frames, concurrently with the other devices
+    PhoenixConfigurator.getInstance()
+        .configure(
+            "Drive motor " + Integer.toString(constants.DriveMotorId),
+            () -> driveTalon.getConfigurator().apply(driveConfig, 0.25),
+            () -> driveTalon.setPosition(0.0, 0.25),
+            () -> drivePosition.setUpdateFrequency(Drive.ODOMETRY_FREQUENCY),
+            () ->
+                BaseStatusSignal.setUpdateFrequencyForAll(
+                    50.0, driveVelocity, driveAppliedVolts, driveCurrent),
+            () -> driveTalon.optimizeBusUtilization());
+    PhoenixConfigurator.getInstance()
+        .configure(
+            "Turn motor " + Integer.toString(constants.SteerMotorId),
+            () -> turnTalon.getConfigurator().apply(turnConfig, 0.25),
+            () -> turnPosition.setUpdateFrequency(Drive.ODOMETRY_FREQUENCY),
+            () ->
+                BaseStatusSignal.setUpdateFrequencyForAll(
+                    50.0, turnVelocity, turnAppliedVolts, turnCurrent),
+            () -> turnTalon.optimizeBusUtilization());
+    PhoenixConfigurator.getInstance()
+        .configure(
+            "CANcoder " + Integer.toString(constants.CANcoderId),
+            () -> cancoder.getConfigurator().apply(cancoderConfig, 0.25),
+            () -> turnAbsolutePosition.setUpdateFrequency(50.0));
+
+    // Register signals for the batched refresh
+    driveSignals =
+        PhoenixSignalBatch.getInstance()
+            .register(
+                TunerConstants.kCANBus,
+                drivePosition,
+                driveVelocity,
+                driveAppliedVolts,
+                driveCurrent);
+    turnSignals =
+        PhoenixSignalBatch.getInstance()
+            .register(
+                TunerConstants.kCANBus, turnPosition, turnVelocity, turnAppliedVolts, turnCurrent);
+    turnEncoderSignals =
+        PhoenixSignalBatch.getInstance().register(TunerConstants.kCANBus, turnAbsolutePosition);
+  }
+
+  /** Sets whether every control request uses timesync, as decided for the whole bus. */
+  private void setUseTimesync(boolean useTimesync) {
+    driveVoltageRequest.UseTimesync = useTimesync;
+    turnVoltageRequest.UseTimesync = useTimesync;
+    positionVoltageRequest.UseTimesync = useTimesync;
+    velocityVoltageRequest.UseTimesync = useTimesync;
+    driveTorqueCurrentRequest.UseTimesync = useTimesync;
+    turnTorqueCurrentRequest.UseTimesync = useTimesync;
+    positionTorqueCurrentRequest.UseTimesync = useTimesync;
+    velocityTorqueCurrentRequest.UseTimesync = useTimesync;
   }
 
   @Override
   public void updateInputs(ModuleIOInputs inputs) {
-    // Refresh all signals
-    var driveStatus =
-        BaseStatusSignal.refreshAll(drivePosition, driveVelocity, driveAppliedVolts, driveCurrent);
-    var turnStatus =
-        BaseStatusSignal.refreshAll(turnPosition, turnVelocity, turnAppliedVolts, turnCurrent);
-    var turnEncoderStatus = BaseStatusSignal.refreshAll(turnAbsolutePosition);
+    // Check signals (refreshed for the whole drivetrain by PhoenixSignalBatch)
+    boolean driveOK = driveSignals.refresh();
+    boolean turnOK = turnSignals.refresh();
+    boolean turnEncoderOK = turnEncoderSignals.refresh();
 
     // Update drive inputs
-    inputs.driveConnected = driveConnectedDebounce.calculate(driveStatus.isOK());
+    inputs.driveConnected = driveConnectedDebounce.calculate(driveOK);
     inputs.drivePositionRad = Units.rotationsToRadians(drivePosition.getValueAsDouble());
     inputs.driveVelocityRadPerSec = Units.rotationsToRadians(driveVelocity.getValueAsDouble());
     inputs.driveAppliedVolts = driveAppliedVolts.getValueAsDouble();
     inputs.driveCurrentAmps = driveCurrent.getValueAsDouble();
 
     // Update turn inputs
-    inputs.turnConnected = turnConnectedDebounce.calculate(turnStatus.isOK());
-    inputs.turnEncoderConnected = turnEncoderConnectedDebounce.calculate(turnEncoderStatus.isOK());
+    inputs.turnConnected = turnConnectedDebounce.calculate(turnOK);
+    inputs.turnEncoderConnected = turnEncoderConnectedDebounce.calculate(turnEncoderOK);
     inputs.turnAbsolutePosition = Rotation2d.fromRotations(turnAbsolutePosition.getValueAsDouble());
     inputs.turnPosition = Rotation2d.fromRotations(turnPosition.getValueAsDouble());
     inputs.turnVelocityRadPerSec = Units.rotationsToRadians(turnVelocity.getValueAsDouble());
     inputs.turnAppliedVolts = turnAppliedVolts.getValueAsDouble();
     inputs.turnCurrentAmps = turnCurrent.getValueAsDouble();
+    inputs.suppressedControlFrames =
+        driveControl.getSuppressedCount() + turnControl.getSuppressedCount();
 
     // Update odometry inputs
+    // (every buffer ends at the same latched sample, so they are aligned by their newest samples)
+    int timestampCount = timestampQueue.drainTo(timestampSamples);
+    int driveCount = drivePositionQueue.drainTo(drivePositionSamples);
+    int driveTimestampCount = drivePositionTimestampQueue.drainTo(drivePositionTimestampSamples);
+    int turnCount = turnPositionQueue.drainTo(turnPositionSamples);
+    int turnTimestampCount = turnPositionTimestampQueue.drainTo(turnPositionTimestampSamples);
+    int sampleCount =
+        Math.min(
+            Math.min(timestampCount, Math.min(driveCount, driveTimestampCount)),
+            Math.min(turnCount, turnTimestampCount));
+    inputs.odometryDriveDroppedSamples = drivePositionQueue.getDroppedCount();
+    inputs.odometryTurnDroppedSamples = turnPositionQueue.getDroppedCount();
+    // (input arrays alternate between two buffers while the sample count is unchanged)
     inputs.odometryTimestamps =
-        timestampQueue.stream().mapToDouble((Double value) -> value).toArray();
+        timestampBuffer.copyNewest(timestampSamples, timestampCount, sampleCount);
+    inputs.odometryDriveTimestamps =
+        drivePositionTimestampBuffer.copyNewest(
+            drivePositionTimestampSamples, driveTimestampCount, sampleCount);
+    inputs.odometryTurnTimestamps =
+        turnPositionTimestampBuffer.copyNewest(
+            turnPositionTimestampSamples, turnTimestampCount, sampleCount);
     inputs.odometryDrivePositionsRad =
-        drivePositionQueue.stream()
-            .mapToDouble((Double value) -> Units.rotationsToRadians(value))
-            .toArray();
-    inputs.odometryTurnPositions =
-        turnPositionQueue.stream()
-            .map((Double value) -> Rotation2d.fromRotations(value))
-            .toArray(Rotation2d[]::new);
-    timestampQueue.clear();
-    drivePositionQueue.clear();
-    turnPositionQueue.clear();
+        drivePositionBuffer.copyNewest(
+            drivePositionSamples, driveCount, sampleCount, 2.0 * Math.PI);
+    inputs.odometryTurnPositionsRad =
+        turnPositionBuffer.copyNewest(turnPositionSamples, turnCount, sampleCount, 2.0 * Math.PI);
   }
 
   @Override
   public void setDriveOpenLoop(double output) {
-    driveTalon.setControl(
+    driveControl.send(
         switch (constants.DriveMotorClosedLoopOutput) {
-          case Voltage -> voltageRequest.withOutput(output);
-          case TorqueCurrentFOC -> torqueCurrentRequest.withOutput(output);
-        });
+          case Voltage -> driveVoltageRequest.withOutput(output);
+          case TorqueCurrentFOC -> driveTorqueCurrentRequest.withOutput(output);
+        },
+        output,
+        deadbands.openLoop);
   }
 
   @Override
   public void setTurnOpenLoop(double output) {
-    turnTalon.setControl(
+    turnControl.send(
         switch (constants.SteerMotorClosedLoopOutput) {
-          case Voltage -> voltageRequest.withOutput(output);
-          case TorqueCurrentFOC -> torqueCurrentRequest.withOutput(output);
-        });
+          case Voltage -> turnVoltageRequest.withOutput(output);
+          case TorqueCurrentFOC -> turnTorqueCurrentRequest.withOutput(output);
+        },
+        output,
+        deadbands.openLoop);
   }
 
   @Override
   public void setDriveVelocity(double velocityRadPerSec) {
     double velocityRotPerSec = Units.radiansToRotations(velocityRadPerSec);
-    driveTalon.setControl(
+    driveControl.send(
         switch (constants.DriveMotorClosedLoopOutput) {
           case Voltage -> velocityVoltageRequest.withVelocity(velocityRotPerSec);
           case TorqueCurrentFOC -> velocityTorqueCurrentRequest.withVelocity(velocityRotPerSec);
-        });
+        },
+        velocityRotPerSec,
+        deadbands.driveVelocity);
   }
 
   @Override
   public void setTurnPosition(Rotation2d rotation) {
-    turnTalon.setControl(
+    double positionRot = rotation.getRotations();
+    turnControl.send(
         switch (constants.SteerMotorClosedLoopOutput) {
-          case Voltage -> positionVoltageRequest.withPosition(rotation.getRotations());
-          case TorqueCurrentFOC -> positionTorqueCurrentRequest.withPosition(
-              rotation.getRotations());
-        });
+          case Voltage -> positionVoltageRequest.withPosition(positionRot);
+          case TorqueCurrentFOC -> positionTorqueCurrentRequest.withPosition(positionRot);
+        },
+        positionRot,
+        deadbands.turnPosition);
+  }
+
+  @Override
+  public DoubleRingBuffer getOdometryDrivePositionQueue() {
+    return drivePositionQueue;
+  }
+
+  @Override
+  public DoubleRingBuffer getOdometryTurnPositionQueue() {
+    return turnPositionQueue;
   }
 }
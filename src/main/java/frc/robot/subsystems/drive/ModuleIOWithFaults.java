@@ -0,0 +1,107 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Module IO wrapper that injects the CAN faults of a {@link FaultProfile} into the inputs of
+ * another (simulated) module IO. Outputs are passed through unchanged.
+ */
+public class ModuleIOWithFaults implements ModuleIO {
+  private final ModuleIO io;
+  private final FaultInjector<ModuleIOInputs> injector;
+  private ModuleIOInputs latest = new ModuleIOInputs();
+  private final SampleArrays.SwapBuffer timestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer drivePositionBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer turnPositionBuffer = new SampleArrays.SwapBuffer();
+
+  public ModuleIOWithFaults(ModuleIO io, FaultProfile profile, long seed) {
+    this.io = io;
+    injector =
+        new FaultInjector<>(profile, seed, Timer.getFPGATimestamp(), 2, ModuleIOInputs::new);
+  }
+
+  @Override
+  public void updateInputs(ModuleIOInputs inputs) {
+    double timestamp = Timer.getFPGATimestamp();
+    ModuleIOInputs snapshot = injector.acquireSnapshot();
+    io.updateInputs(snapshot);
+    for (int i = 0; i < snapshot.odometryTimestamps.length; i++) {
+      injector.offerSample(
+          snapshot.odometryTimestamps[i],
+          snapshot.odometryDrivePositionsRad[i],
+          snapshot.odometryTurnPositionsRad[i]);
+    }
+    long driveDroppedSamples = snapshot.odometryDriveDroppedSamples;
+    long turnDroppedSamples = snapshot.odometryTurnDroppedSamples;
+    injector.offerSnapshot(snapshot, timestamp);
+
+    // Report the newest snapshot that has arrived, the last one is held while none arrives
+    ModuleIOInputs arrived = injector.pollSnapshot(timestamp);
+    if (arrived != null) {
+      latest = arrived;
+    }
+    boolean connected = !injector.isDisconnected(timestamp);
+    inputs.driveConnected = connected && latest.driveConnected;
+    inputs.drivePositionRad = latest.drivePositionRad;
+    inputs.driveVelocityRadPerSec = latest.driveVelocityRadPerSec;
+    inputs.driveAppliedVolts = latest.driveAppliedVolts;
+    inputs.driveCurrentAmps = latest.driveCurrentAmps;
+    inputs.turnConnected = connected && latest.turnConnected;
+    inputs.turnEncoderConnected = connected && latest.turnEncoderConnected;
+    inputs.turnAbsolutePosition = latest.turnAbsolutePosition;
+    inputs.turnPosition = latest.turnPosition;
+    inputs.turnVelocityRadPerSec = latest.turnVelocityRadPerSec;
+    inputs.turnAppliedVolts = latest.turnAppliedVolts;
+    inputs.turnCurrentAmps = latest.turnCurrentAmps;
+    inputs.suppressedControlFrames = latest.suppressedControlFrames;
+
+    // Report the odometry samples that have arrived, with their measurement timestamps
+    int sampleCount = injector.countArrivedSamples(timestamp);
+    inputs.odometryTimestamps = timestampBuffer.next(sampleCount);
+    inputs.odometryDrivePositionsRad = drivePositionBuffer.next(sampleCount);
+    inputs.odometryTurnPositionsRad = turnPositionBuffer.next(sampleCount);
+    injector.takeSamples(
+        sampleCount,
+        inputs.odometryTimestamps,
+        inputs.odometryDrivePositionsRad,
+        inputs.odometryTurnPositionsRad);
+    inputs.odometryDriveTimestamps = inputs.odometryTimestamps;
+    inputs.odometryTurnTimestamps = inputs.odometryTimestamps;
+    inputs.odometryDriveDroppedSamples = driveDroppedSamples + injector.getDroppedCount();
+    inputs.odometryTurnDroppedSamples = turnDroppedSamples + injector.getDroppedCount();
+  }
+
+  @Override
+  public void setDriveOpenLoop(double output) {
+    io.setDriveOpenLoop(output);
+  }
+
+  @Override
+  public void setTurnOpenLoop(double output) {
+    io.setTurnOpenLoop(output);
+  }
+
+  @Override
+  public void setDriveVelocity(double velocityRadPerSec) {
+    io.setDriveVelocity(velocityRadPerSec);
+  }
+
+  @Override
+  public void setTurnPosition(Rotation2d rotation) {
+    io.setTurnPosition(rotation);
+  }
+}
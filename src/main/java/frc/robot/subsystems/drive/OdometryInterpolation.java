@@ -0,0 +1,85 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Helpers for resampling odometry signals that were measured at slightly different times onto a
+ * common sample time. All methods operate on primitive arrays and do not allocate.
+ */
+public final class OdometryInterpolation {
+  /** Maximum distance past the newest or oldest sample to extrapolate, in seconds. */
+  private static final double MAX_EXTRAPOLATION = 0.01;
+
+  private OdometryInterpolation() {}
+
+  /**
+   * Returns the index of the first sample at or after the timestamp, or the number of samples if
+   * every sample is older. Timestamps must be sorted.
+   */
+  public static int upperIndex(double[] timestamps, int count, double timestamp) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (timestamps[mid] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Linearly interpolates a signal at the given time, extrapolating a short distance from the two
+   * nearest samples at either end.
+   */
+  public static double interpolate(
+      double[] timestamps, double[] values, int count, double timestamp) {
+    if (count == 0) return 0.0;
+    if (count == 1) return values[0];
+    int upper = MathUtil.clamp(upperIndex(timestamps, count, timestamp), 1, count - 1);
+    int lower = upper - 1;
+    double span = timestamps[upper] - timestamps[lower];
+    if (span <= 0.0) return values[upper];
+    double clampedTime =
+        MathUtil.clamp(
+            timestamp,
+            timestamps[0] - MAX_EXTRAPOLATION,
+            timestamps[count - 1] + MAX_EXTRAPOLATION);
+    double fraction = (clampedTime - timestamps[lower]) / span;
+    return values[lower] + (values[upper] - values[lower]) * fraction;
+  }
+
+  /** Like {@link #interpolate}, but for angles in radians, following the shortest path. */
+  public static double interpolateAngle(
+      double[] timestamps, double[] anglesRad, int count, double timestamp) {
+    if (count == 0) return 0.0;
+    if (count == 1) return anglesRad[0];
+    int upper = MathUtil.clamp(upperIndex(timestamps, count, timestamp), 1, count - 1);
+    int lower = upper - 1;
+    double span = timestamps[upper] - timestamps[lower];
+    if (span <= 0.0) return anglesRad[upper];
+    double clampedTime =
+        MathUtil.clamp(
+            timestamp,
+            timestamps[0] - MAX_EXTRAPOLATION,
+            timestamps[count - 1] + MAX_EXTRAPOLATION);
+    double fraction = (clampedTime - timestamps[lower]) / span;
+    return anglesRad[lower]
+        + MathUtil.angleModulus(anglesRad[upper] - anglesRad[lower]) * fraction;
+  }
+}
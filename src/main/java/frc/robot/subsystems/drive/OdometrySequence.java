@@ -0,0 +1,58 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+/**
+ * Sample counter shared by every {@link DoubleRingBuffer} filled on the same sampling pass.
+ *
+ * <p>The producer writes a sample to every buffer and only then publishes it, so no lock is needed
+ * between the odometry thread and the main loop. The consumer latches the published count once per
+ * loop and every buffer is then read up to that same sample index, which keeps the batch
+ * consistent across signals even while the producer keeps running.
+ */
+public class OdometrySequence {
+  private volatile long published = 0; // Written by producer only
+  private long latched = 0; // Consumer only
+  private long tornReads = 0; // Consumer only
+
+  /** Returns the index that the next sample will be written to. Safe to call from any thread. */
+  long getPublished() {
+    return published;
+  }
+
+  /** Makes the sample written since the last call visible to the consumer. Producer only. */
+  void publish() {
+    published = published + 1;
+  }
+
+  /** Freezes the set of samples that buffers will return until the next latch. Consumer only. */
+  public void latch() {
+    latched = published;
+  }
+
+  /** Returns the sample count captured by the last latch. Consumer only. */
+  long getLatched() {
+    return latched;
+  }
+
+  /** Records a read that overlapped with the producer overwriting the same slots. Consumer only. */
+  void recordTornRead() {
+    tornReads++;
+  }
+
+  /** Returns the total number of reads that lost samples to a concurrent overwrite. */
+  public long getTornReadCount() {
+    return tornReads;
+  }
+}
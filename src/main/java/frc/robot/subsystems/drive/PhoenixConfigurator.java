@@ -0,0 +1,163 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.StatusCode;
+import edu.wpi.first.wpilibj.Alert;
+import edu.wpi.first.wpilibj.Alert.AlertType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Configures Phoenix devices concurrently at startup, instead of one after another on the main
+ * thread.
+ *
+ * <p>Each IO submits the configuration steps of its devices from its constructor. The steps of one
+ * device run in order, and every step is retried with exponential backoff until it returns OK.
+ * Devices are configured in parallel on a small thread pool. {@link #awaitCompletion()} waits for
+ * every device up to a fixed deadline (Drive calls it before starting the odometry thread), then
+ * logs the configuration time of each device and raises an alert for every device that failed.
+ */
+public class PhoenixConfigurator {
+  private static final int THREAD_COUNT = 4;
+  private static final int MAX_ATTEMPTS = 5;
+  private static final double INITIAL_BACKOFF_SECS = 0.02;
+  private static final double DEADLINE_SECS = 5.0;
+
+  private ExecutorService executor = null;
+  private final List<Device> devices = new ArrayList<>();
+  private final List<Alert> failureAlerts = new ArrayList<>();
+  private static PhoenixConfigurator instance = null;
+
+  public static PhoenixConfigurator getInstance() {
+    if (instance == null) {
+      instance = new PhoenixConfigurator();
+    }
+    return instance;
+  }
+
+  private PhoenixConfigurator() {}
+
+  /** Configuration of one device, run on the thread pool. */
+  private static class Device {
+    private final String name;
+    private Future<StatusCode> result;
+    private volatile int attempts = 0;
+    private volatile double durationSecs = 0.0;
+
+    private Device(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Starts configuring a device. Called during construction of an IO.
+   *
+   * @param name The device name, used in logs and alerts.
+   * @param steps The configuration steps, run in order. Every step must be safe to retry.
+   */
+  @SafeVarargs
+  public final void configure(String name, Supplier<StatusCode>... steps) {
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(
+              THREAD_COUNT,
+              runnable -> {
+                Thread thread = new Thread(runnable, "PhoenixConfigurator");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    Device device = new Device(name);
+    device.result = executor.submit(() -> run(device, steps));
+    devices.add(device);
+  }
+
+  private static StatusCode run(Device device, Supplier<StatusCode>[] steps)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    StatusCode status = StatusCode.OK;
+    for (Supplier<StatusCode> step : steps) {
+      double backoffSecs = INITIAL_BACKOFF_SECS;
+      for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+        device.attempts++;
+        status = step.get();
+        if (status.isOK()) break;
+        if (attempt < MAX_ATTEMPTS - 1) {
+          Thread.sleep((long) (backoffSecs * 1000.0));
+          backoffSecs *= 2.0;
+        }
+      }
+      if (!status.isOK()) break;
+    }
+    device.durationSecs = (System.nanoTime() - start) / 1e9;
+    return status;
+  }
+
+  /**
+   * Waits for every submitted device to finish configuring, up to a fixed deadline, and reports
+   * the results. Devices still configuring at the deadline are reported as failed.
+   */
+  public void awaitCompletion() {
+    if (executor == null) return;
+    long start = System.nanoTime();
+    long deadline = start + (long) (DEADLINE_SECS * 1e9);
+    int failureCount = 0;
+    for (Device device : devices) {
+      String failure = null;
+      try {
+        StatusCode status =
+            device.result.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        if (!status.isOK()) {
+          failure = status.getName();
+        }
+      } catch (TimeoutException e) {
+        failure = "timed out";
+      } catch (ExecutionException e) {
+        failure = e.getCause().toString();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = "interrupted";
+      }
+
+      String key = "PhoenixConfig/" + device.name.replace(" ", "");
+      Logger.recordOutput(key + "/Ms", device.durationSecs * 1000.0);
+      Logger.recordOutput(key + "/Attempts", device.attempts);
+      Logger.recordOutput(key + "/OK", failure == null);
+      if (failure != null) {
+        failureCount++;
+        Alert alert =
+            new Alert(
+                "Failed to configure " + device.name + " (" + failure + ").", AlertType.kError);
+        alert.set(true);
+        failureAlerts.add(alert);
+      }
+    }
+    Logger.recordOutput("PhoenixConfig/WaitMs", (System.nanoTime() - start) / 1e6);
+    Logger.recordOutput("PhoenixConfig/FailureCount", failureCount);
+
+    // Abandon devices still configuring, later devices get a new pool
+    executor.shutdownNow();
+    executor = null;
+    devices.clear();
+  }
+}
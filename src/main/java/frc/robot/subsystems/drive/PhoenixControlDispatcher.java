@@ -0,0 +1,166 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.CANBus;
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.controls.ControlRequest;
+import com.ctre.phoenix6.hardware.TalonFX;
+import edu.wpi.first.wpilibj.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Sends the control requests of every drivetrain motor together, instead of spread over the loop
+ * as each module is commanded.
+ *
+ * <p>Each IO registers its motors as a {@link Slot} and sends requests through it. When dispatching
+ * is enabled, requests are only staged, and {@link #dispatch()} sends every staged request back to
+ * back (Drive does this after commanding the modules). On a CAN FD bus with Pro-licensed devices,
+ * requests also use timesync, so every device applies its request at the same timesync boundary.
+ * With dispatching disabled, each slot sends its requests immediately, as before.
+ */
+public class PhoenixControlDispatcher {
+  static final boolean SYNCHRONIZED_DISPATCH = true;
+  private static final double LICENSE_TIMEOUT_SECS = 0.25;
+
+  private final List<Slot> slots = new ArrayList<>();
+  private final List<Consumer<Boolean>> timesyncListeners = new ArrayList<>();
+  private static PhoenixControlDispatcher instance = null;
+
+  public static PhoenixControlDispatcher getInstance() {
+    if (instance == null) {
+      instance = new PhoenixControlDispatcher();
+    }
+    return instance;
+  }
+
+  private PhoenixControlDispatcher() {}
+
+  /** Control requests of one motor. Repeated requests are suppressed by its filter. */
+  public static class Slot {
+    private final TalonFX talon;
+    private final ControlRequestFilter filter = new ControlRequestFilter();
+    private ControlRequest stagedRequest = null;
+
+    private Slot(TalonFX talon) {
+      this.talon = talon;
+    }
+
+    /**
+     * Sends a request unless it repeats the last one sent to the motor. When dispatching is
+     * enabled, the request is staged until the next dispatch, replacing any request staged
+     * earlier in the same loop.
+     *
+     * @param request The request, which must not be shared with another slot.
+     * @param value The setpoint of the request.
+     * @param epsilon The largest change in value that is still treated as a repeat.
+     */
+    public void send(ControlRequest request, double value, double epsilon) {
+      if (!filter.shouldSend(request, value, epsilon, Timer.getFPGATimestamp())) return;
+      if (SYNCHRONIZED_DISPATCH) {
+        stagedRequest = request;
+      } else {
+        apply(request);
+      }
+    }
+
+    /** Returns the number of repeated requests to this motor that were not sent. */
+    public long getSuppressedCount() {
+      return filter.getSuppressedCount();
+    }
+
+    private void apply(ControlRequest request) {
+      // Make sure the next request is sent if this one failed
+      if (!talon.setControl(request).isOK()) {
+        filter.invalidate();
+      }
+    }
+  }
+
+  /** Adds a motor to the dispatcher. Called during construction of an IO. */
+  public Slot register(TalonFX talon) {
+    Slot slot = new Slot(talon);
+    slots.add(slot);
+    return slot;
+  }
+
+  /**
+   * Adds a callback that applies the timesync decision to the control requests of an IO. Called
+   * during construction of an IO.
+   */
+  public void addTimesyncListener(Consumer<Boolean> listener) {
+    timesyncListeners.add(listener);
+  }
+
+  /**
+   * Decides once for the whole bus whether requests use timesync, which needs every registered
+   * motor to be Pro licensed, and passes the decision to every listener. The license signals of all
+   * motors are waited for together. Called by Drive once every IO is constructed.
+   */
+  public void configureTimesync(CANBus bus) {
+    String decision = getTimesyncDecision(bus);
+    Logger.recordOutput("PhoenixConfig/Timesync", decision);
+    boolean useTimesync = decision.equals("Enabled");
+    for (Consumer<Boolean> listener : timesyncListeners) {
+      listener.accept(useTimesync);
+    }
+  }
+
+  private String getTimesyncDecision(CANBus bus) {
+    if (!SYNCHRONIZED_DISPATCH) return "Dispatch disabled";
+    if (slots.isEmpty()) return "No motors";
+    if (!bus.isNetworkFD()) return "Not CAN FD";
+    BaseStatusSignal[] licenses = new BaseStatusSignal[slots.size()];
+    for (int i = 0; i < licenses.length; i++) {
+      licenses[i] = slots.get(i).talon.getIsProLicensed();
+    }
+    StatusCode status = BaseStatusSignal.waitForAll(LICENSE_TIMEOUT_SECS, licenses);
+    if (!status.isOK()) return "License unknown (" + status.getName() + ")";
+    for (int i = 0; i < licenses.length; i++) {
+      if (licenses[i].getValueAsDouble() == 0.0) {
+        int deviceId = slots.get(i).talon.getDeviceID();
+        return "Not Pro licensed (TalonFX " + Integer.toString(deviceId) + ")";
+      }
+    }
+    return "Enabled";
+  }
+
+  /**
+   * Sends every staged request back to back, and logs the host time between the first and last
+   * send. That is the spread of the sends on the roboRIO, not the skew between devices applying
+   * them, which timesync removes on the devices.
+   */
+  public void dispatch() {
+    if (!SYNCHRONIZED_DISPATCH) return;
+    long firstSend = 0;
+    long lastSend = 0;
+    int sentCount = 0;
+    for (int i = 0; i < slots.size(); i++) {
+      Slot slot = slots.get(i);
+      if (slot.stagedRequest == null) continue;
+      long sendStart = System.nanoTime();
+      if (sentCount == 0) firstSend = sendStart;
+      lastSend = sendStart;
+      slot.apply(slot.stagedRequest);
+      slot.stagedRequest = null;
+      sentCount++;
+    }
+    Logger.recordOutput("Drive/ControlFramesSent", sentCount);
+    Logger.recordOutput("Drive/ControlSendSpreadMs", (lastSend - firstSend) / 1e6);
+  }
+}
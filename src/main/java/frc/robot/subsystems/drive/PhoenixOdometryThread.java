@@ -16,36 +16,54 @@ package frc.robot.subsystems.drive;
 import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.CANBus;
 import com.ctre.phoenix6.StatusSignal;
+import com.ctre.phoenix6.Timestamp;
+import com.ctre.phoenix6.Timestamp.TimestampSource;
 import edu.wpi.first.units.measure.Angle;
 import edu.wpi.first.wpilibj.RobotController;
-import frc.robot.generated.TunerConstants;
+import org.littletonrobotics.junction.Logger;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.DoubleSupplier;
 
 /**
- * Provides an interface for asynchronously reading high-frequency measurements to a set of queues.
+ * Provides an interface for asynchronously reading high-frequency measurements to a set of
+ * primitive ring buffers.
  *
- * <p>This version is intended for Phoenix 6 devices on both the RIO and CANivore buses. When using
- * a CANivore, the thread uses the "waitForAll" blocking method to enable more consistent sampling.
- * This also allows Phoenix Pro users to benefit from lower latency between devices using CANivore
- * time synchronization.
+ * <p>This version is intended for Phoenix 6 devices on both the RIO and CANivore buses. Signals are
+ * registered against their CAN bus, and each bus is sampled by its own thread so that a slow bus
+ * cannot delay another. On CAN FD buses, the thread uses the "waitForAll" blocking method to enable
+ * more consistent sampling. This also allows Phoenix Pro users to benefit from lower latency
+ * between devices using CANivore time synchronization. Generic (non-Phoenix) signals are sampled
+ * on a separate thread.
+ *
+ * <p>All samplers feed a common merge stage: every buffer reports FPGA timestamps, and {@link
+ * #latchSamples()} freezes every sampler at once, so the main loop reads one consistent batch and
+ * aligns signals from different buses by time.
+ *
+ * <p>In {@link TimestampMode#PER_SIGNAL} mode, signals can also report the time at which each of
+ * their own samples was measured, so consumers can resample every signal onto one common time.
  */
-public class PhoenixOdometryThread extends Thread {
-  private final Lock signalsLock =
-      new ReentrantLock(); // Prevents conflicts when registering signals
-  private BaseStatusSignal[] phoenixSignals = new BaseStatusSignal[0];
-  private final List<DoubleSupplier> genericSignals = new ArrayList<>();
-  private final List<Queue<Double>> phoenixQueues = new ArrayList<>();
-  private final List<Queue<Double>> genericQueues = new ArrayList<>();
-  private final List<Queue<Double>> timestampQueues = new ArrayList<>();
-
-  private static boolean isCANFD =
-      new CANBus(TunerConstants.DrivetrainConstants.CANBusName).isNetworkFD();
+public class PhoenixOdometryThread {
+  /** How the timestamps of Phoenix signals are produced. */
+  public static enum TimestampMode {
+    /** Every signal uses the sample time: FPGA time minus the average CAN latency. */
+    AVERAGE_LATENCY,
+
+    /** Every signal uses its own hardware timestamp, converted to FPGA time. */
+    PER_SIGNAL
+  }
+
+  static final TimestampMode TIMESTAMP_MODE = TimestampMode.PER_SIGNAL;
+  private static final int QUEUE_READ_MARGIN = 4; // Samples written while the main loop reads
+
+  private final Lock samplersLock = new ReentrantLock(); // Prevents conflicts when adding buses
+  private final Map<String, Sampler> busSamplers = new LinkedHashMap<>();
+  private final Sampler genericSampler = new Sampler(null);
+  private volatile Sampler[] samplers = new Sampler[] {genericSampler}; // Read without locking
   private static PhoenixOdometryThread instance = null;
 
   public static PhoenixOdometryThread getInstance() {
@@ -55,112 +73,334 @@ public class PhoenixOdometryThread extends Thread {
     return instance;
   }
 
-  private PhoenixOdometryThread() {
-    setName("PhoenixOdometryThread");
-    setDaemon(true);
+  private PhoenixOdometryThread() {}
+
+  /** Receives a callback on a sampling thread after each sample is published. */
+  @FunctionalInterface
+  public static interface SampleListener {
+    /**
+     * Called on the sampling thread right after a sample is published. The latest value of each
+     * buffer on the same thread can be read with {@link DoubleRingBuffer#getLatest()}. Must not
+     * block or allocate.
+     */
+    void onSample(double timestamp);
+  }
+
+  /** Returns the odometry sample rate used for signals on the given CAN bus. */
+  public static double getSampleFrequency(CANBus bus) {
+    return bus.isNetworkFD() ? 250.0 : 100.0;
+  }
+
+  /**
+   * Returns the buffer capacity needed to hold every sample taken at the given rate while the main
+   * loop is stalled for {@link Drive#MAX_LOOP_STALL_SECS} on top of its normal period.
+   */
+  public static int getQueueCapacity(double frequency) {
+    return (int) Math.ceil(frequency * (Drive.MAX_LOOP_STALL_SECS + 0.02)) + QUEUE_READ_MARGIN;
   }
 
-  @Override
+  /** Starts a sampling thread for every bus that has at least one timestamp queue. */
   public void start() {
-    if (timestampQueues.size() > 0) {
-      super.start();
+    for (Sampler sampler : samplers) {
+      sampler.startIfUsed();
     }
   }
 
-  /** Registers a Phoenix signal to be read from the thread. */
-  public Queue<Double> registerSignal(StatusSignal<Angle> signal) {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    signalsLock.lock();
-    Drive.odometryLock.lock();
-    try {
-      BaseStatusSignal[] newSignals = new BaseStatusSignal[phoenixSignals.length + 1];
-      System.arraycopy(phoenixSignals, 0, newSignals, 0, phoenixSignals.length);
-      newSignals[phoenixSignals.length] = signal;
-      phoenixSignals = newSignals;
-      phoenixQueues.add(queue);
-    } finally {
-      signalsLock.unlock();
-      Drive.odometryLock.unlock();
+  /** Registers a Phoenix signal on the given CAN bus to be read from that bus's thread. */
+  public DoubleRingBuffer registerSignal(CANBus bus, StatusSignal<Angle> signal) {
+    return getSampler(bus).registerSignal(signal);
+  }
+
+  /** Registers a generic signal to be read from the generic sampling thread. */
+  public DoubleRingBuffer registerSignal(DoubleSupplier signal) {
+    return genericSampler.registerSignal(signal);
+  }
+
+  /** Adds a listener called on the given CAN bus's thread after every sample. */
+  public void addSampleListener(CANBus bus, SampleListener listener) {
+    getSampler(bus).addSampleListener(listener);
+  }
+
+  /** Returns a new queue that returns timestamp values for each sample on the given CAN bus. */
+  public DoubleRingBuffer makeTimestampQueue(CANBus bus) {
+    return getSampler(bus).makeTimestampQueue();
+  }
+
+  /** Returns a new queue that returns timestamp values for each sample of the generic signals. */
+  public DoubleRingBuffer makeGenericTimestampQueue() {
+    return genericSampler.makeTimestampQueue();
+  }
+
+  /**
+   * Returns a new buffer that returns the FPGA time at which each sample of a registered Phoenix
+   * signal was measured. Uses the sample time when not in {@link TimestampMode#PER_SIGNAL} mode.
+   */
+  public DoubleRingBuffer makeTimestampQueue(StatusSignal<Angle> signal) {
+    for (Sampler sampler : samplers) {
+      DoubleRingBuffer queue = sampler.makeTimestampQueue(signal);
+      if (queue != null) {
+        return queue;
+      }
     }
-    return queue;
+    throw new IllegalArgumentException("Signal must be registered before its timestamps.");
   }
 
-  /** Registers a generic signal to be read from the thread. */
-  public Queue<Double> registerSignal(DoubleSupplier signal) {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    signalsLock.lock();
-    Drive.odometryLock.lock();
-    try {
-      genericSignals.add(signal);
-      genericQueues.add(queue);
-    } finally {
-      signalsLock.unlock();
-      Drive.odometryLock.unlock();
+  /**
+   * Freezes the samples returned by every buffer on every bus until the next call, so that all
+   * signals are read up to the same sample index. Called by the main loop before updating inputs.
+   */
+  public void latchSamples() {
+    for (Sampler sampler : samplers) {
+      sampler.sequence.latch();
     }
-    return queue;
   }
 
-  /** Returns a new queue that returns timestamp values for each sample. */
-  public Queue<Double> makeTimestampQueue() {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
+  /** Logs the timing metrics of every sampler. Called by the main loop. */
+  public void logMetrics() {
+    for (Sampler sampler : samplers) {
+      sampler.logMetrics();
+    }
+  }
+
+  /** Returns the number of buffer reads that lost samples to the producer lapping the reader. */
+  public long getTornReadCount() {
+    long count = 0;
+    for (Sampler sampler : samplers) {
+      count += sampler.sequence.getTornReadCount();
+    }
+    return count;
+  }
+
+  private Sampler getSampler(CANBus bus) {
+    samplersLock.lock();
     try {
-      timestampQueues.add(queue);
+      Sampler sampler = busSamplers.get(bus.getName());
+      if (sampler == null) {
+        sampler = new Sampler(bus);
+        busSamplers.put(bus.getName(), sampler);
+        Sampler[] newSamplers = new Sampler[samplers.length + 1];
+        System.arraycopy(samplers, 0, newSamplers, 0, samplers.length);
+        newSamplers[samplers.length] = sampler;
+        samplers = newSamplers;
+      }
+      return sampler;
     } finally {
-      Drive.odometryLock.unlock();
+      samplersLock.unlock();
     }
-    return queue;
   }
 
-  @Override
-  public void run() {
-    while (true) {
-      // Wait for updates from all signals
+  /** Samples the signals of one CAN bus (or the generic signals) on a dedicated thread. */
+  private static class Sampler extends Thread {
+    private final Lock signalsLock =
+        new ReentrantLock(); // Prevents conflicts when registering signals
+    private BaseStatusSignal[] phoenixSignals = new BaseStatusSignal[0];
+    private final List<DoubleSupplier> genericSignals = new ArrayList<>();
+    private final List<DoubleRingBuffer> phoenixQueues = new ArrayList<>();
+    private final List<DoubleRingBuffer> genericQueues = new ArrayList<>();
+    private final List<DoubleRingBuffer> timestampQueues = new ArrayList<>();
+    private final List<DoubleRingBuffer> phoenixTimestampQueues = new ArrayList<>();
+    private final List<SampleListener> listeners = new ArrayList<>();
+    private final ClockOffsetEstimator[] clockOffsets =
+        new ClockOffsetEstimator[TimestampSource.values().length];
+    private final OdometrySequence sequence = new OdometrySequence();
+
+    private final boolean isCANFD;
+    private final double frequency;
+    private final int queueCapacity;
+    private final DeadlineScheduler scheduler;
+    private final String achievedRateKey;
+    private final String wakeLatenessKey;
+    private final String skippedDeadlinesKey;
+
+    // Achieved rate, measured over one second windows
+    private long rateWindowStart = 0;
+    private int rateWindowSamples = 0;
+    private volatile double achievedRateHz = 0.0;
+
+    private Sampler(CANBus bus) {
+      isCANFD = bus != null && bus.isNetworkFD();
+      frequency = bus != null ? getSampleFrequency(bus) : Drive.ODOMETRY_FREQUENCY;
+      queueCapacity = getQueueCapacity(frequency);
+      scheduler = new DeadlineScheduler(frequency);
+      String logPrefix = "Odometry/Samplers/" + (bus != null ? bus.getName() : "Generic") + "/";
+      achievedRateKey = logPrefix + "AchievedRateHz";
+      wakeLatenessKey = logPrefix + "WakeLatenessMs";
+      skippedDeadlinesKey = logPrefix + "SkippedDeadlines";
+      setName("PhoenixOdometryThread" + (bus != null ? " (" + bus.getName() + ")" : ""));
+      setDaemon(true);
+      for (int i = 0; i < clockOffsets.length; i++) {
+        clockOffsets[i] = new ClockOffsetEstimator();
+      }
+    }
+
+    private void startIfUsed() {
+      if (timestampQueues.size() > 0 && getState() == State.NEW) {
+        start();
+      }
+    }
+
+    private DoubleRingBuffer registerSignal(StatusSignal<Angle> signal) {
+      DoubleRingBuffer queue = new DoubleRingBuffer(queueCapacity, sequence);
       signalsLock.lock();
       try {
-        if (isCANFD && phoenixSignals.length > 0) {
-          BaseStatusSignal.waitForAll(2.0 / Drive.ODOMETRY_FREQUENCY, phoenixSignals);
-        } else {
-          // "waitForAll" does not support blocking on multiple signals with a bus
-          // that is not CAN FD, regardless of Pro licensing. No reasoning for this
-          // behavior is provided by the documentation.
-          Thread.sleep((long) (1000.0 / Drive.ODOMETRY_FREQUENCY));
-          if (phoenixSignals.length > 0) BaseStatusSignal.refreshAll(phoenixSignals);
-        }
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+        BaseStatusSignal[] newSignals = new BaseStatusSignal[phoenixSignals.length + 1];
+        System.arraycopy(phoenixSignals, 0, newSignals, 0, phoenixSignals.length);
+        newSignals[phoenixSignals.length] = signal;
+        phoenixSignals = newSignals;
+        phoenixQueues.add(queue);
+        phoenixTimestampQueues.add(null);
       } finally {
         signalsLock.unlock();
       }
+      return queue;
+    }
 
-      // Save new data to queues
-      Drive.odometryLock.lock();
+    private DoubleRingBuffer registerSignal(DoubleSupplier signal) {
+      DoubleRingBuffer queue = new DoubleRingBuffer(queueCapacity, sequence);
+      signalsLock.lock();
       try {
-        // Sample timestamp is current FPGA time minus average CAN latency
-        //     Default timestamps from Phoenix are NOT compatible with
-        //     FPGA timestamps, this solution is imperfect but close
-        double timestamp = RobotController.getFPGATime() / 1e6;
-        double totalLatency = 0.0;
-        for (BaseStatusSignal signal : phoenixSignals) {
-          totalLatency += signal.getTimestamp().getLatency();
-        }
-        if (phoenixSignals.length > 0) {
-          timestamp -= totalLatency / phoenixSignals.length;
-        }
+        genericSignals.add(signal);
+        genericQueues.add(queue);
+      } finally {
+        signalsLock.unlock();
+      }
+      return queue;
+    }
+
+    private void addSampleListener(SampleListener listener) {
+      signalsLock.lock();
+      try {
+        listeners.add(listener);
+      } finally {
+        signalsLock.unlock();
+      }
+    }
+
+    private DoubleRingBuffer makeTimestampQueue() {
+      DoubleRingBuffer queue = new DoubleRingBuffer(queueCapacity, sequence);
+      signalsLock.lock();
+      try {
+        timestampQueues.add(queue);
+      } finally {
+        signalsLock.unlock();
+      }
+      return queue;
+    }
 
-        // Add new samples to queues
+    /** Returns a per-signal timestamp queue, or null if the signal is not on this bus. */
+    private DoubleRingBuffer makeTimestampQueue(StatusSignal<Angle> signal) {
+      signalsLock.lock();
+      try {
         for (int i = 0; i < phoenixSignals.length; i++) {
-          phoenixQueues.get(i).offer(phoenixSignals[i].getValueAsDouble());
-        }
-        for (int i = 0; i < genericSignals.size(); i++) {
-          genericQueues.get(i).offer(genericSignals.get(i).getAsDouble());
-        }
-        for (int i = 0; i < timestampQueues.size(); i++) {
-          timestampQueues.get(i).offer(timestamp);
+          if (phoenixSignals[i] == signal) {
+            DoubleRingBuffer queue = new DoubleRingBuffer(queueCapacity, sequence);
+            phoenixTimestampQueues.set(i, queue);
+            return queue;
+          }
         }
+        return null;
       } finally {
-        Drive.odometryLock.unlock();
+        signalsLock.unlock();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        // Registration is held off for the whole pass so that a new buffer never sees a
+        // sample published without its own value. The main loop never takes this lock.
+        signalsLock.lock();
+        try {
+          // Wait for updates from all signals
+          if (isCANFD && phoenixSignals.length > 0) {
+            BaseStatusSignal.waitForAll(2.0 / frequency, phoenixSignals);
+          } else {
+            // "waitForAll" does not support blocking on multiple signals with a bus
+            // that is not CAN FD, regardless of Pro licensing. No reasoning for this
+            // behavior is provided by the documentation.
+            scheduler.waitForNextDeadline();
+            if (phoenixSignals.length > 0) BaseStatusSignal.refreshAll(phoenixSignals);
+          }
+
+          // Sample timestamp is current FPGA time minus average CAN latency
+          //     Default timestamps from Phoenix are NOT compatible with
+          //     FPGA timestamps, this solution is imperfect but close
+          long receiveTimeMicros = RobotController.getFPGATime();
+          double receiveTimestamp = receiveTimeMicros / 1e6;
+          double timestamp = receiveTimestamp;
+          double totalLatency = 0.0;
+          for (BaseStatusSignal signal : phoenixSignals) {
+            totalLatency += signal.getTimestamp().getLatency();
+          }
+          if (phoenixSignals.length > 0) {
+            timestamp -= totalLatency / phoenixSignals.length;
+          }
+
+          // Write the sample to every buffer, then publish it in one step
+          for (int i = 0; i < phoenixSignals.length; i++) {
+            phoenixQueues.get(i).put(phoenixSignals[i].getValueAsDouble());
+          }
+          for (int i = 0; i < genericSignals.size(); i++) {
+            genericQueues.get(i).put(genericSignals.get(i).getAsDouble());
+          }
+          for (int i = 0; i < timestampQueues.size(); i++) {
+            timestampQueues.get(i).put(timestamp);
+          }
+          for (int i = 0; i < phoenixSignals.length; i++) {
+            DoubleRingBuffer queue = phoenixTimestampQueues.get(i);
+            if (queue != null) {
+              queue.put(
+                  TIMESTAMP_MODE == TimestampMode.PER_SIGNAL
+                      ? getSignalTimestamp(phoenixSignals[i], receiveTimestamp, timestamp)
+                      : timestamp);
+            }
+          }
+          sequence.publish();
+          for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onSample(timestamp);
+          }
+          updateRate(receiveTimeMicros);
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        } finally {
+          signalsLock.unlock();
+        }
+      }
+    }
+
+    private void updateRate(long timeMicros) {
+      rateWindowSamples++;
+      long elapsed = timeMicros - rateWindowStart;
+      if (elapsed >= 1_000_000) {
+        achievedRateHz = rateWindowStart > 0 ? rateWindowSamples * 1e6 / elapsed : 0.0;
+        rateWindowStart = timeMicros;
+        rateWindowSamples = 0;
+      }
+    }
+
+    private void logMetrics() {
+      if (getState() == State.NEW) return;
+      Logger.recordOutput(achievedRateKey, achievedRateHz);
+      if (!isCANFD) {
+        Logger.recordOutput(wakeLatenessKey, scheduler.getLastLatenessMs());
+        Logger.recordOutput(skippedDeadlinesKey, scheduler.getSkippedDeadlines());
+      }
+    }
+
+    /**
+     * Converts the hardware timestamp of a signal to FPGA time, using an offset learned separately
+     * for each Phoenix time base. Falls back to the sample time if the timestamp is not valid.
+     */
+    private double getSignalTimestamp(
+        BaseStatusSignal signal, double receiveTimestamp, double sampleTimestamp) {
+      Timestamp deviceTimestamp = signal.getTimestamp();
+      if (!deviceTimestamp.isValid()) {
+        return sampleTimestamp;
       }
+      double deviceTime = deviceTimestamp.getTime();
+      return deviceTime
+          + clockOffsets[deviceTimestamp.getSource().ordinal()].update(
+              receiveTimestamp, deviceTime);
     }
   }
 }
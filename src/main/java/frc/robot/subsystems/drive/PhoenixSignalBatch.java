@@ -0,0 +1,84 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.CANBus;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Refreshes the main-loop status signals of every drivetrain device with one {@code refreshAll}
+ * call per CAN bus, instead of one or more calls per device.
+ *
+ * <p>Each IO registers its signals as a {@link Slice} and calls {@link Slice#refresh()} from its
+ * {@code updateInputs}. When batching is enabled, {@link #refreshAll()} must be called first each
+ * loop (Drive does this before updating inputs), and slices only check the status of their own
+ * signals. With batching disabled, each slice refreshes its own signals, as before.
+ */
+public class PhoenixSignalBatch {
+  static final boolean BATCH_REFRESH = true;
+
+  private final Map<String, BaseStatusSignal[]> busSignals = new LinkedHashMap<>();
+  private BaseStatusSignal[][] batches = new BaseStatusSignal[0][];
+  private static PhoenixSignalBatch instance = null;
+
+  public static PhoenixSignalBatch getInstance() {
+    if (instance == null) {
+      instance = new PhoenixSignalBatch();
+    }
+    return instance;
+  }
+
+  private PhoenixSignalBatch() {}
+
+  /** Signals of one device (or group of signals) within a batch. */
+  public static class Slice {
+    private final BaseStatusSignal[] signals;
+
+    private Slice(BaseStatusSignal[] signals) {
+      this.signals = signals;
+    }
+
+    /**
+     * Returns whether every signal in the slice is OK after the latest refresh. Refreshes the slice
+     * itself if batching is disabled.
+     */
+    public boolean refresh() {
+      if (BATCH_REFRESH) {
+        return BaseStatusSignal.isAllGood(signals);
+      }
+      return BaseStatusSignal.refreshAll(signals).isOK();
+    }
+  }
+
+  /** Adds signals on the given CAN bus to the batch. Called during construction of an IO. */
+  public Slice register(CANBus bus, BaseStatusSignal... signals) {
+    BaseStatusSignal[] existing = busSignals.getOrDefault(bus.getName(), new BaseStatusSignal[0]);
+    BaseStatusSignal[] combined = new BaseStatusSignal[existing.length + signals.length];
+    System.arraycopy(existing, 0, combined, 0, existing.length);
+    System.arraycopy(signals, 0, combined, existing.length, signals.length);
+    busSignals.put(bus.getName(), combined);
+    batches = busSignals.values().toArray(new BaseStatusSignal[0][]);
+    return new Slice(signals);
+  }
+
+  /** Refreshes every registered signal with one call per CAN bus. Called by the main loop. */
+  public void refreshAll() {
+    if (!BATCH_REFRESH) return;
+    for (BaseStatusSignal[] batch : batches) {
+      BaseStatusSignal.refreshAll(batch);
+    }
+  }
+}
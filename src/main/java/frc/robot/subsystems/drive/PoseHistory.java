@@ -0,0 +1,160 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+
+/**
+ * Bounded, time-sorted history of the estimated pose and robot-relative chassis velocity, stored
+ * in parallel primitive ring buffers. Lookups use a binary search and linear interpolation (along
+ * the shortest path for the heading) and do not allocate.
+ */
+public class PoseHistory {
+  /** Number of values written by {@link #sample}: x, y, theta, vx, vy, omega. */
+  public static final int SAMPLE_SIZE = 6;
+
+  private final double duration;
+  private final double[] times;
+  private final double[][] values = new double[SAMPLE_SIZE][];
+  private final int mask;
+  private int start = 0;
+  private int size = 0;
+
+  /**
+   * Constructs a history that keeps at least the given duration of samples.
+   *
+   * @param duration The length of history to keep, in seconds.
+   * @param frequency The maximum rate samples are added, in Hz.
+   */
+  public PoseHistory(double duration, double frequency) {
+    this.duration = duration;
+    int capacity = Integer.highestOneBit((int) Math.ceil(duration * frequency) + 1) << 1;
+    times = new double[capacity];
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      values[i] = new double[capacity];
+    }
+    mask = capacity - 1;
+  }
+
+  /** Removes all samples, e.g. after the pose is reset. */
+  public void clear() {
+    size = 0;
+  }
+
+  /** Returns whether the history has no samples. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns the time of the oldest sample in seconds, or 0 if empty. */
+  public double getOldestTime() {
+    return size == 0 ? 0.0 : times[start];
+  }
+
+  /** Returns the time of the newest sample in seconds, or 0 if empty. */
+  public double getNewestTime() {
+    return size == 0 ? 0.0 : times[index(size - 1)];
+  }
+
+  /**
+   * Adds a sample. Samples must be added in time order; samples at or before the newest time are
+   * ignored.
+   */
+  public void addSample(
+      double time, double x, double y, double theta, double vx, double vy, double omega) {
+    if (size > 0 && time <= times[index(size - 1)]) return;
+    while (size > 0 && time - times[start] > duration) {
+      start = index(1);
+      size--;
+    }
+    if (size == times.length) {
+      start = index(1);
+      size--;
+    }
+    int i = index(size);
+    times[i] = time;
+    values[0][i] = x;
+    values[1][i] = y;
+    values[2][i] = theta;
+    values[3][i] = vx;
+    values[4][i] = vy;
+    values[5][i] = omega;
+    size++;
+  }
+
+  /**
+   * Interpolates the history at the given time, clamping to the oldest and newest samples.
+   *
+   * @param time The time to sample in seconds.
+   * @param output Receives x (m), y (m), theta (rad), vx (m/s), vy (m/s), and omega (rad/s).
+   * @return Whether the history had any samples. The output is unchanged if not.
+   */
+  public boolean sample(double time, double[] output) {
+    if (size == 0) return false;
+    int upper = upperIndex(time);
+    if (upper == 0 || upper == size) {
+      int i = index(upper == 0 ? 0 : size - 1);
+      for (int j = 0; j < SAMPLE_SIZE; j++) {
+        output[j] = values[j][i];
+      }
+      return true;
+    }
+    int lowerIndex = index(upper - 1);
+    int upperIndex = index(upper);
+    double fraction = (time - times[lowerIndex]) / (times[upperIndex] - times[lowerIndex]);
+    for (int j = 0; j < SAMPLE_SIZE; j++) {
+      double lowerValue = values[j][lowerIndex];
+      double difference = values[j][upperIndex] - lowerValue;
+      output[j] =
+          j == 2
+              ? MathUtil.angleModulus(lowerValue + MathUtil.angleModulus(difference) * fraction)
+              : lowerValue + difference * fraction;
+    }
+    return true;
+  }
+
+  /** Interpolates only the heading at the given time in radians, or 0 if empty. */
+  public double sampleTheta(double time) {
+    if (size == 0) return 0.0;
+    int upper = upperIndex(time);
+    if (upper == 0 || upper == size) {
+      return values[2][index(upper == 0 ? 0 : size - 1)];
+    }
+    int lowerIndex = index(upper - 1);
+    int upperIndex = index(upper);
+    double fraction = (time - times[lowerIndex]) / (times[upperIndex] - times[lowerIndex]);
+    double lowerValue = values[2][lowerIndex];
+    return MathUtil.angleModulus(
+        lowerValue + MathUtil.angleModulus(values[2][upperIndex] - lowerValue) * fraction);
+  }
+
+  private int index(int logicalIndex) {
+    return (start + logicalIndex) & mask;
+  }
+
+  /** Returns the logical index of the first sample at or after the given time. */
+  private int upperIndex(double time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (times[index(mid)] < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
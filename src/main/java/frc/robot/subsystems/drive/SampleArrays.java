@@ -0,0 +1,80 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+/**
+ * Helpers for filling odometry input arrays without allocating on every loop.
+ *
+ * <p>Input arrays are logged whole, so their length must equal the number of valid samples.
+ * AdvantageKit keeps a reference to every logged array until its receivers have written the cycle
+ * out on their own thread, so the array logged on one loop must not be overwritten on the next.
+ * Each input field therefore alternates between the two arrays of a {@link SwapBuffer}, which are
+ * only replaced when the sample count changes. This is rare since the main loop and the odometry
+ * thread run at fixed rates.
+ */
+public final class SampleArrays {
+  private static final double[] EMPTY = new double[] {};
+
+  private SampleArrays() {}
+
+  private static double[] withLength(double[] array, int length) {
+    if (array.length == length) return array;
+    return length == 0 ? EMPTY : new double[length];
+  }
+
+  /**
+   * The two arrays for one logged input field. Each call returns the array that was not returned
+   * by the previous call, so the array logged on the last loop is left untouched while the
+   * receivers may still be reading it.
+   */
+  public static final class SwapBuffer {
+    private double[] front = EMPTY; // Returned by the last call, possibly still being logged
+    private double[] back = EMPTY;
+
+    /** Returns the other array, with the requested length. Its contents are unspecified. */
+    public double[] next(int length) {
+      double[] array = withLength(back, length);
+      back = front;
+      front = array;
+      return array;
+    }
+
+    /**
+     * Copies the newest samples from a drained buffer into the other array.
+     *
+     * @param source The drained samples, oldest first.
+     * @param sourceCount The number of valid samples in the source.
+     * @param count The number of newest samples to copy.
+     * @param scale A factor applied to every sample, e.g. for unit conversion.
+     * @return An array of exactly {@code count} samples.
+     */
+    public double[] copyNewest(double[] source, int sourceCount, int count, double scale) {
+      double[] output = next(count);
+      int offset = sourceCount - count;
+      if (scale == 1.0) {
+        System.arraycopy(source, offset, output, 0, count);
+      } else {
+        for (int i = 0; i < count; i++) {
+          output[i] = source[offset + i] * scale;
+        }
+      }
+      return output;
+    }
+
+    /** Like {@link #copyNewest(double[], int, int, double)}, without scaling. */
+    public double[] copyNewest(double[] source, int sourceCount, int count) {
+      return copyNewest(source, sourceCount, count, 1.0);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.swerve.SwerveModuleConstants;
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import edu.wpi.first.math.system.plant.DCMotor;
+
+/**
+ * Limits chassis speed setpoints to what the modules can physically follow in one loop.
+ *
+ * <p>Each loop moves from the previous setpoint toward the desired speeds along a straight line in
+ * chassis-speed space, and takes the largest step for which every module stays within its drive
+ * acceleration limit and steering velocity limit. The drive acceleration limit comes from the slip
+ * current and the motor's back-EMF at the current speed, capped by wheel friction. Modules that are
+ * (nearly) stopped may steer freely, since their speed is already cosine-scaled by the module.
+ */
+public class SwerveSetpointGenerator {
+  private static final double GRAVITY = 9.81;
+  private static final double STEER_VELOCITY_MARGIN = 0.8; // Fraction of the free speed to use
+  private static final double STOPPED_SPEED = 0.05; // Meters per second
+  private static final int SEARCH_ITERATIONS = 10;
+
+  // Module geometry and limits
+  private final double[] moduleX;
+  private final double[] moduleY;
+  private final double maxSpeed;
+  private final double maxSteerVelocity;
+  private final double maxFrictionAccel;
+  private final DCMotor driveMotor;
+  private final double driveGearRatio;
+  private final double wheelRadius;
+  private final double slipCurrent;
+  private final double massKg;
+
+  // Previous setpoint
+  private double previousVx = 0.0;
+  private double previousVy = 0.0;
+  private double previousOmega = 0.0;
+  private final double[] previousSpeeds;
+  private final double[] previousAngles;
+  private final Rotation2d[] previousRotations; // Rebuilt only when the heading changes
+
+  // Output, reused between calls
+  private final SwerveModuleState[] states;
+  private final ChassisSpeeds speeds = new ChassisSpeeds();
+
+  // Step being evaluated
+  private double stepVx;
+  private double stepVy;
+  private double stepOmega;
+  private double desiredVx;
+  private double desiredVy;
+  private double desiredOmega;
+
+  /**
+   * Constructs a setpoint generator.
+   *
+   * @param moduleTranslations The position of each module on the robot.
+   * @param constants The module constants, used for the drive and steer limits.
+   * @param maxSpeed The maximum module speed in meters per second.
+   * @param driveMotor The drive motor model of one module.
+   * @param steerMotor The steer motor model of one module.
+   * @param massKg The robot mass in kilograms.
+   * @param wheelCof The wheel coefficient of friction.
+   */
+  public SwerveSetpointGenerator(
+      Translation2d[] moduleTranslations,
+      SwerveModuleConstants constants,
+      double maxSpeed,
+      DCMotor driveMotor,
+      DCMotor steerMotor,
+      double massKg,
+      double wheelCof) {
+    int moduleCount = moduleTranslations.length;
+    moduleX = new double[moduleCount];
+    moduleY = new double[moduleCount];
+    previousSpeeds = new double[moduleCount];
+    previousAngles = new double[moduleCount];
+    previousRotations = new Rotation2d[moduleCount];
+    states = new SwerveModuleState[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      moduleX[i] = moduleTranslations[i].getX();
+      moduleY[i] = moduleTranslations[i].getY();
+      states[i] = new SwerveModuleState();
+      previousRotations[i] = new Rotation2d();
+    }
+    this.maxSpeed = maxSpeed;
+    this.driveMotor = driveMotor;
+    this.massKg = massKg;
+    driveGearRatio = constants.DriveMotorGearRatio;
+    wheelRadius = constants.WheelRadius;
+    slipCurrent = constants.SlipCurrent;
+    maxSteerVelocity =
+        steerMotor.freeSpeedRadPerSec / constants.SteerMotorGearRatio * STEER_VELOCITY_MARGIN;
+    maxFrictionAccel = wheelCof * GRAVITY;
+  }
+
+  /**
+   * Resets the previous setpoint, e.g. to the measured state after the drive was disabled or
+   * controlled by other means.
+   */
+  public void reset(ChassisSpeeds measuredSpeeds, SwerveModuleState[] measuredStates) {
+    previousVx = measuredSpeeds.vxMetersPerSecond;
+    previousVy = measuredSpeeds.vyMetersPerSecond;
+    previousOmega = measuredSpeeds.omegaRadiansPerSecond;
+    for (int i = 0; i < moduleX.length; i++) {
+      previousSpeeds[i] = Math.abs(measuredStates[i].speedMetersPerSecond);
+      previousAngles[i] =
+          measuredStates[i].speedMetersPerSecond >= 0.0
+              ? measuredStates[i].angle.getRadians()
+              : MathUtil.angleModulus(measuredStates[i].angle.getRadians() + Math.PI);
+    }
+  }
+
+  /** Sets the headings that stopped modules hold, like {@code SwerveDriveKinematics}. */
+  public void resetHeadings(Rotation2d[] headings) {
+    for (int i = 0; i < moduleX.length; i++) {
+      previousAngles[i] = headings[i].getRadians();
+    }
+  }
+
+  /**
+   * Returns module states that move from the previous setpoint toward the desired speeds as far as
+   * the module limits allow in one period. The returned states are reused by the next call.
+   *
+   * @param desiredSpeeds The desired robot-relative chassis speeds.
+   * @param dt The loop period in seconds.
+   */
+  public SwerveModuleState[] generate(ChassisSpeeds desiredSpeeds, double dt) {
+    // Desaturate the desired speeds, which scales every module speed equally
+    desiredVx = desiredSpeeds.vxMetersPerSecond;
+    desiredVy = desiredSpeeds.vyMetersPerSecond;
+    desiredOmega = desiredSpeeds.omegaRadiansPerSecond;
+    double maxModuleSpeed = 0.0;
+    for (int i = 0; i < moduleX.length; i++) {
+      double vx = desiredVx - desiredOmega * moduleY[i];
+      double vy = desiredVy + desiredOmega * moduleX[i];
+      maxModuleSpeed = Math.max(maxModuleSpeed, Math.hypot(vx, vy));
+    }
+    if (maxModuleSpeed > maxSpeed) {
+      double scale = maxSpeed / maxModuleSpeed;
+      desiredVx *= scale;
+      desiredVy *= scale;
+      desiredOmega *= scale;
+    }
+
+    // Find the largest feasible step toward the desired speeds
+    double step = 1.0;
+    if (!isFeasible(1.0, dt)) {
+      double low = 0.0;
+      double high = 1.0;
+      for (int i = 0; i < SEARCH_ITERATIONS; i++) {
+        double mid = (low + high) / 2.0;
+        if (isFeasible(mid, dt)) {
+          low = mid;
+        } else {
+          high = mid;
+        }
+      }
+      step = low;
+    }
+    setStep(step);
+
+    // Build the module states, holding the heading of stopped modules
+    for (int i = 0; i < moduleX.length; i++) {
+      double vx = stepVx - stepOmega * moduleY[i];
+      double vy = stepVy + stepOmega * moduleX[i];
+      double speed = Math.hypot(vx, vy);
+      if (speed > 1e-6) {
+        previousAngles[i] = Math.atan2(vy, vx);
+      }
+      previousSpeeds[i] = speed;
+      states[i].speedMetersPerSecond = speed;
+      if (previousRotations[i].getRadians() != previousAngles[i]) {
+        previousRotations[i] = new Rotation2d(previousAngles[i]);
+      }
+      states[i].angle = previousRotations[i];
+    }
+    previousVx = stepVx;
+    previousVy = stepVy;
+    previousOmega = stepOmega;
+    speeds.vxMetersPerSecond = stepVx;
+    speeds.vyMetersPerSecond = stepVy;
+    speeds.omegaRadiansPerSecond = stepOmega;
+    return states;
+  }
+
+  /** Returns the chassis speeds of the last generated setpoint. Reused by the next call. */
+  public ChassisSpeeds getSetpointSpeeds() {
+    return speeds;
+  }
+
+  private void setStep(double step) {
+    stepVx = previousVx + (desiredVx - previousVx) * step;
+    stepVy = previousVy + (desiredVy - previousVy) * step;
+    stepOmega = previousOmega + (desiredOmega - previousOmega) * step;
+  }
+
+  /** Returns whether every module can follow a step of the given fraction within one period. */
+  private boolean isFeasible(double step, double dt) {
+    setStep(step);
+    for (int i = 0; i < moduleX.length; i++) {
+      double vx = stepVx - stepOmega * moduleY[i];
+      double vy = stepVy + stepOmega * moduleX[i];
+      double speed = Math.hypot(vx, vy);
+
+      // Steering, only limited while the module is moving
+      double angleError = 0.0;
+      if (speed > STOPPED_SPEED && previousSpeeds[i] > STOPPED_SPEED) {
+        angleError = MathUtil.angleModulus(Math.atan2(vy, vx) - previousAngles[i]);
+        // The module can reverse its wheel instead of turning more than 90 degrees
+        double flippedError =
+            Math.abs(angleError) > Math.PI / 2.0
+                ? Math.PI - Math.abs(angleError)
+                : Math.abs(angleError);
+        if (flippedError > maxSteerVelocity * dt) return false;
+      }
+
+      // Drive acceleration, with the wheel reversed if the module flips
+      double signedSpeed = Math.abs(angleError) > Math.PI / 2.0 ? -speed : speed;
+      double speedChange = signedSpeed - previousSpeeds[i];
+      double maxAccel =
+          speedChange > 0.0
+              ? getMaxAcceleration(previousSpeeds[i])
+              : getMaxAcceleration(0.0); // Braking is not limited by back-EMF
+      if (Math.abs(speedChange) > maxAccel * dt + 1e-9) return false;
+    }
+    return true;
+  }
+
+  /** Returns the maximum module acceleration when accelerating from the given wheel speed. */
+  private double getMaxAcceleration(double wheelSpeed) {
+    double motorSpeed = wheelSpeed / wheelRadius * driveGearRatio;
+    double current = Math.min(slipCurrent, driveMotor.getCurrent(motorSpeed, 12.0));
+    double force = driveMotor.getTorque(Math.max(current, 0.0)) * driveGearRatio / wheelRadius;
+    double accel = force * moduleX.length / massKg;
+    return Math.min(accel, maxFrictionAccel);
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import org.littletonrobotics.junction.AutoLog;
+
+/** Odometry integrated on the odometry sampling thread, at the full sample rate. */
+public interface ThreadedOdometryIO {
+  @AutoLog
+  public static class ThreadedOdometryIOInputs {
+    public boolean enabled = false;
+    public double[] odometryTimestamps = new double[] {};
+    public double[] odometryX = new double[] {};
+    public double[] odometryY = new double[] {};
+    public double[] odometryTheta = new double[] {};
+    public long odometryDroppedSamples = 0;
+    public double[] moduleSlipScores = new double[] {};
+  }
+
+  /** Updates the set of loggable inputs with the poses integrated since the last call. */
+  public default void updateInputs(ThreadedOdometryIOInputs inputs) {}
+
+  /** Sets whether the gyro is connected. Otherwise the heading is integrated from kinematics. */
+  public default void setGyroConnected(boolean connected) {}
+
+  /**
+   * Reads the most recently integrated odometry pose without locking. Safe to call from any thread.
+   *
+   * @param output Receives the timestamp, x, y, and theta of the latest pose.
+   * @return The version of the pose, which changes with every new pose, or 0 if none is available.
+   */
+  public default long getLatestPose(double[] output) {
+    return 0;
+  }
+}
@@ -0,0 +1,281 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.swerve.SwerveModuleConstants;
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.util.Units;
+import frc.robot.generated.TunerConstants;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Integrates odometry in a {@link PhoenixOdometryThread.SampleListener} on the drivetrain CAN bus
+ * thread, so the pose advances at the full sample rate instead of in batches on the main loop.
+ *
+ * <p>Every integrated pose is written to ring buffers that the main loop drains as inputs, which
+ * keeps replay deterministic. The newest pose is also published through a sequence lock so it can
+ * be read at any moment without locking.
+ */
+public class ThreadedOdometryIOPhoenix
+    implements ThreadedOdometryIO, PhoenixOdometryThread.SampleListener {
+  // Signals, read on the sampling thread
+  private final DoubleRingBuffer[] drivePositionQueues;
+  private final DoubleRingBuffer[] turnPositionQueues;
+  private final DoubleRingBuffer yawQueue;
+  private final double[] wheelRadii;
+  private volatile boolean gyroConnected = true;
+
+  // Module geometry
+  private final int moduleCount;
+  private final double[] moduleX;
+  private final double[] moduleY;
+
+  // Integration state, sampling thread only
+  private boolean initialized = false;
+  private double lastTimestamp = 0.0;
+  private final double[] lastDistances;
+  private final double[] moduleDx;
+  private final double[] moduleDy;
+  private final double[] moduleWeights;
+  private final double[] twist = new double[3];
+  private final WheelSlipDetector slipDetector;
+  private double lastYawRad = 0.0;
+  private double x = 0.0;
+  private double y = 0.0;
+  private double theta = 0.0;
+
+  // Integrated poses for the main loop
+  private final OdometrySequence sequence = new OdometrySequence();
+  private final DoubleRingBuffer timestampQueue;
+  private final DoubleRingBuffer xQueue;
+  private final DoubleRingBuffer yQueue;
+  private final DoubleRingBuffer thetaQueue;
+  private final DoubleRingBuffer[] slipScoreQueues;
+  private final double[] timestampSamples;
+  private final double[] xSamples;
+  private final double[] ySamples;
+  private final double[] thetaSamples;
+  private final SampleArrays.SwapBuffer timestampBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer xBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer yBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer thetaBuffer = new SampleArrays.SwapBuffer();
+  private final SampleArrays.SwapBuffer slipScoreBuffer = new SampleArrays.SwapBuffer();
+
+  // Latest pose, published with a sequence lock (odd while being written)
+  private volatile long latestVersion = 0;
+  private double latestTimestamp = 0.0;
+  private double latestX = 0.0;
+  private double latestY = 0.0;
+  private double latestTheta = 0.0;
+
+  /**
+   * Creates a threaded odometry IO if the gyro and every module write their odometry signals on the
+   * {@link TunerConstants#kCANBus} thread, and registers it with that thread.
+   *
+   * @return The IO, or null if any signal is not sampled on that thread.
+   */
+  public static ThreadedOdometryIOPhoenix create(
+      GyroIO gyroIO,
+      ModuleIO[] moduleIOs,
+      SwerveModuleConstants[] constants,
+      Translation2d[] moduleTranslations) {
+    if (gyroIO.getOdometryYawQueue() == null) return null;
+    for (ModuleIO moduleIO : moduleIOs) {
+      if (moduleIO.getOdometryDrivePositionQueue() == null
+          || moduleIO.getOdometryTurnPositionQueue() == null) {
+        return null;
+      }
+    }
+    ThreadedOdometryIOPhoenix io =
+        new ThreadedOdometryIOPhoenix(gyroIO, moduleIOs, constants, moduleTranslations);
+    PhoenixOdometryThread.getInstance().addSampleListener(TunerConstants.kCANBus, io);
+    return io;
+  }
+
+  private ThreadedOdometryIOPhoenix(
+      GyroIO gyroIO,
+      ModuleIO[] moduleIOs,
+      SwerveModuleConstants[] constants,
+      Translation2d[] moduleTranslations) {
+    moduleCount = moduleIOs.length;
+    drivePositionQueues = new DoubleRingBuffer[moduleCount];
+    turnPositionQueues = new DoubleRingBuffer[moduleCount];
+    wheelRadii = new double[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      drivePositionQueues[i] = moduleIOs[i].getOdometryDrivePositionQueue();
+      turnPositionQueues[i] = moduleIOs[i].getOdometryTurnPositionQueue();
+      wheelRadii[i] = constants[i].WheelRadius;
+    }
+    yawQueue = gyroIO.getOdometryYawQueue();
+    lastDistances = new double[moduleCount];
+    moduleDx = new double[moduleCount];
+    moduleDy = new double[moduleCount];
+    moduleWeights = new double[moduleCount];
+    moduleX = new double[moduleCount];
+    moduleY = new double[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      moduleX[i] = moduleTranslations[i].getX();
+      moduleY[i] = moduleTranslations[i].getY();
+    }
+    slipDetector = new WheelSlipDetector(moduleTranslations);
+
+    int capacity = PhoenixOdometryThread.getQueueCapacity(Drive.ODOMETRY_FREQUENCY);
+    timestampQueue = new DoubleRingBuffer(capacity, sequence);
+    xQueue = new DoubleRingBuffer(capacity, sequence);
+    yQueue = new DoubleRingBuffer(capacity, sequence);
+    thetaQueue = new DoubleRingBuffer(capacity, sequence);
+    slipScoreQueues = new DoubleRingBuffer[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      slipScoreQueues[i] = new DoubleRingBuffer(capacity, sequence);
+    }
+    timestampSamples = new double[timestampQueue.getCapacity()];
+    xSamples = new double[xQueue.getCapacity()];
+    ySamples = new double[yQueue.getCapacity()];
+    thetaSamples = new double[thetaQueue.getCapacity()];
+  }
+
+  @Override
+  public void onSample(double timestamp) {
+    double yawRad = Units.degreesToRadians(yawQueue.getLatest());
+    if (!initialized) {
+      for (int i = 0; i < moduleCount; i++) {
+        lastDistances[i] =
+            Units.rotationsToRadians(drivePositionQueues[i].getLatest()) * wheelRadii[i];
+      }
+      lastYawRad = yawRad;
+      lastTimestamp = timestamp;
+      initialized = true;
+    }
+
+    // Module displacements, weighted by how well they agree with the rigid-body fit
+    for (int i = 0; i < moduleCount; i++) {
+      double distance =
+          Units.rotationsToRadians(drivePositionQueues[i].getLatest()) * wheelRadii[i];
+      double angle = Units.rotationsToRadians(turnPositionQueues[i].getLatest());
+      double delta = distance - lastDistances[i];
+      moduleDx[i] = delta * Math.cos(angle);
+      moduleDy[i] = delta * Math.sin(angle);
+      lastDistances[i] = distance;
+    }
+    boolean useGyro = gyroConnected;
+    double gyroDtheta = MathUtil.angleModulus(yawRad - lastYawRad);
+    lastYawRad = yawRad;
+    slipDetector.update(
+        moduleDx,
+        moduleDy,
+        useGyro ? gyroDtheta : Double.NaN,
+        timestamp - lastTimestamp,
+        moduleWeights);
+    lastTimestamp = timestamp;
+
+    // Weighted least-squares chassis twist, with the gyro rotation when available
+    DrivePoseEstimator.fitTranslation(moduleX, moduleY, moduleDx, moduleDy, moduleWeights, twist);
+    double twistX = twist[0];
+    double twistY = twist[1];
+    double dtheta = useGyro ? gyroDtheta : twist[2];
+
+    // Apply the twist along a constant-curvature arc, as in Pose2d.exp
+    double s;
+    double c;
+    if (Math.abs(dtheta) < 1e-9) {
+      s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+      c = 0.5 * dtheta;
+    } else {
+      s = Math.sin(dtheta) / dtheta;
+      c = (1 - Math.cos(dtheta)) / dtheta;
+    }
+    double localX = twistX * s - twistY * c;
+    double localY = twistX * c + twistY * s;
+    double cos = Math.cos(theta);
+    double sin = Math.sin(theta);
+    x += localX * cos - localY * sin;
+    y += localX * sin + localY * cos;
+    theta = MathUtil.angleModulus(theta + dtheta);
+
+    // Hand the pose to the main loop
+    timestampQueue.put(timestamp);
+    xQueue.put(x);
+    yQueue.put(y);
+    thetaQueue.put(theta);
+    double[] slipScores = slipDetector.getSlipScores();
+    for (int i = 0; i < moduleCount; i++) {
+      slipScoreQueues[i].put(slipScores[i]);
+    }
+    sequence.publish();
+
+    // Publish the latest pose for readers on any thread
+    long version = latestVersion;
+    latestVersion = version + 1;
+    VarHandle.storeStoreFence();
+    latestTimestamp = timestamp;
+    latestX = x;
+    latestY = y;
+    latestTheta = theta;
+    latestVersion = version + 2;
+  }
+
+  @Override
+  public void updateInputs(ThreadedOdometryIOInputs inputs) {
+    sequence.latch();
+    int timestampCount = timestampQueue.drainTo(timestampSamples);
+    int xCount = xQueue.drainTo(xSamples);
+    int yCount = yQueue.drainTo(ySamples);
+    int thetaCount = thetaQueue.drainTo(thetaSamples);
+    int sampleCount = Math.min(Math.min(timestampCount, xCount), Math.min(yCount, thetaCount));
+
+    inputs.enabled = true;
+    inputs.odometryDroppedSamples = timestampQueue.getDroppedCount();
+    inputs.odometryTimestamps =
+        timestampBuffer.copyNewest(timestampSamples, timestampCount, sampleCount);
+    inputs.odometryX = xBuffer.copyNewest(xSamples, xCount, sampleCount);
+    inputs.odometryY = yBuffer.copyNewest(ySamples, yCount, sampleCount);
+    inputs.odometryTheta = thetaBuffer.copyNewest(thetaSamples, thetaCount, sampleCount);
+
+    // Only the newest slip score is needed, the last one is kept if there is no new score
+    double[] lastSlipScores = inputs.moduleSlipScores;
+    inputs.moduleSlipScores = slipScoreBuffer.next(moduleCount);
+    for (int i = 0; i < moduleCount; i++) {
+      int count = slipScoreQueues[i].drainTo(thetaSamples);
+      if (count > 0) {
+        inputs.moduleSlipScores[i] = thetaSamples[count - 1];
+      } else {
+        inputs.moduleSlipScores[i] = i < lastSlipScores.length ? lastSlipScores[i] : 0.0;
+      }
+    }
+  }
+
+  @Override
+  public void setGyroConnected(boolean connected) {
+    gyroConnected = connected;
+  }
+
+  @Override
+  public long getLatestPose(double[] output) {
+    while (true) {
+      long version = latestVersion;
+      if (version == 0) return 0;
+      if ((version & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      output[0] = latestTimestamp;
+      output[1] = latestX;
+      output[2] = latestY;
+      output[3] = latestTheta;
+      VarHandle.loadLoadFence();
+      if (latestVersion == version) return version;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Translation2d;
+
+/**
+ * Detects slipping modules by comparing each module's displacement against the rigid-body motion
+ * of the chassis.
+ *
+ * <p>For each sample, every module's displacement is converted to the chassis translation it
+ * implies given the chassis rotation (from the gyro when available). The robust center of those
+ * translations (the median of each axis) is the rigid-body fit, and each module's distance from it
+ * is its slip velocity. Modules are down-weighted as their slip grows and dropped beyond a hard
+ * limit. Runs in constant time and does not allocate.
+ */
+public class WheelSlipDetector {
+  private static final double SLIP_THRESHOLD = 0.25; // Meters per second, full weight below
+  private static final double REJECT_THRESHOLD = 1.0; // Meters per second, zero weight above
+  private static final double SCORE_TIME_CONSTANT = 0.1; // Seconds
+
+  private final int moduleCount;
+  private final double[] moduleOffsetX;
+  private final double[] moduleOffsetY;
+  private final double moduleOffsetNormSquared;
+  private final double[] slipScores;
+
+  // Scratch space
+  private final double[] impliedX;
+  private final double[] impliedY;
+  private final double[] sorted;
+
+  public WheelSlipDetector(Translation2d[] moduleTranslations) {
+    moduleCount = moduleTranslations.length;
+    moduleOffsetX = new double[moduleCount];
+    moduleOffsetY = new double[moduleCount];
+    slipScores = new double[moduleCount];
+    impliedX = new double[moduleCount];
+    impliedY = new double[moduleCount];
+    sorted = new double[moduleCount];
+    double centroidX = 0.0;
+    double centroidY = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      centroidX += moduleTranslations[i].getX() / moduleCount;
+      centroidY += moduleTranslations[i].getY() / moduleCount;
+    }
+    double normSquared = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      moduleOffsetX[i] = moduleTranslations[i].getX() - centroidX;
+      moduleOffsetY[i] = moduleTranslations[i].getY() - centroidY;
+      normSquared += moduleOffsetX[i] * moduleOffsetX[i] + moduleOffsetY[i] * moduleOffsetY[i];
+    }
+    moduleOffsetNormSquared = normSquared;
+  }
+
+  /**
+   * Checks one odometry sample and computes the weight each module should have in the fit.
+   *
+   * @param moduleDx The robot-relative X displacement of each module since the last sample.
+   * @param moduleDy The robot-relative Y displacement of each module since the last sample.
+   * @param dtheta The chassis rotation since the last sample from the gyro in radians, or NaN to
+   *     fit it from the modules.
+   * @param dt The time since the last sample in seconds.
+   * @param weights Receives the weight of each module, between 0 and 1.
+   */
+  public void update(
+      double[] moduleDx, double[] moduleDy, double dtheta, double dt, double[] weights) {
+    if (!(dt > 0.0)) {
+      for (int i = 0; i < moduleCount; i++) {
+        weights[i] = 1.0;
+      }
+      return;
+    }
+    if (Double.isNaN(dtheta)) {
+      double cross = 0.0;
+      for (int i = 0; i < moduleCount; i++) {
+        cross += moduleOffsetX[i] * moduleDy[i] - moduleOffsetY[i] * moduleDx[i];
+      }
+      dtheta = cross / moduleOffsetNormSquared;
+    }
+
+    // Chassis translation implied by each module, after removing the rotation
+    for (int i = 0; i < moduleCount; i++) {
+      impliedX[i] = moduleDx[i] + dtheta * moduleOffsetY[i];
+      impliedY[i] = moduleDy[i] - dtheta * moduleOffsetX[i];
+    }
+    double fitX = median(impliedX);
+    double fitY = median(impliedY);
+
+    // Weight each module by its distance from the fit
+    double alpha = dt / (SCORE_TIME_CONSTANT + dt);
+    int usable = 0;
+    for (int i = 0; i < moduleCount; i++) {
+      double slip = Math.hypot(impliedX[i] - fitX, impliedY[i] - fitY) / dt;
+      slipScores[i] += alpha * (slip - slipScores[i]);
+      if (slip <= SLIP_THRESHOLD) {
+        weights[i] = 1.0;
+      } else if (slip >= REJECT_THRESHOLD) {
+        weights[i] = 0.0;
+      } else {
+        double ratio = SLIP_THRESHOLD / slip;
+        weights[i] = ratio * ratio;
+      }
+      if (weights[i] > 0.0) usable++;
+    }
+
+    // A translation cannot be fit from fewer than two modules, so trust all of them instead
+    if (usable < 2) {
+      for (int i = 0; i < moduleCount; i++) {
+        weights[i] = 1.0;
+      }
+    }
+  }
+
+  /** Returns the filtered slip velocity of each module in meters per second. */
+  public double[] getSlipScores() {
+    return slipScores;
+  }
+
+  /** Returns the slip score above which a module is considered to be slipping. */
+  public static double getSlipThreshold() {
+    return SLIP_THRESHOLD;
+  }
+
+  private double median(double[] values) {
+    // Insertion sort, the arrays are tiny
+    for (int i = 0; i < moduleCount; i++) {
+      double value = values[i];
+      int j = i - 1;
+      while (j >= 0 && sorted[j] > value) {
+        sorted[j + 1] = sorted[j];
+        j--;
+      }
+      sorted[j + 1] = value;
+    }
+    int middle = moduleCount / 2;
+    return moduleCount % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class DoubleRingBufferTest {
+  private static void publish(OdometrySequence sequence, DoubleRingBuffer buffer, double value) {
+    if (buffer != null) buffer.put(value);
+    sequence.publish();
+  }
+
+  @Test
+  void bufferCreatedAheadOfTheLatchReadsOnlyItsOwnSamples() {
+    OdometrySequence sequence = new OdometrySequence();
+    publish(sequence, null, 0.0);
+    sequence.latch();
+    publish(sequence, null, 0.0);
+    publish(sequence, null, 0.0);
+
+    // Created after samples that were published but not yet latched
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8, sequence);
+    double[] output = new double[8];
+    assertEquals(0, buffer.drainTo(output));
+    assertEquals(0, buffer.getDroppedCount());
+
+    publish(sequence, buffer, 1.0);
+    publish(sequence, buffer, 2.0);
+    sequence.latch();
+    int count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {1.0, 2.0}, Arrays.copyOf(output, count));
+    assertEquals(0, buffer.getDroppedCount());
+  }
+
+  @Test
+  void clearBeforeTheLatchDoesNotRewind() {
+    OdometrySequence sequence = new OdometrySequence();
+    publish(sequence, null, 0.0);
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8, sequence);
+    buffer.clear();
+
+    publish(sequence, buffer, 3.0);
+    sequence.latch();
+    double[] output = new double[8];
+    int count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {3.0}, Arrays.copyOf(output, count));
+  }
+
+  /** Publishes the values from first to last, in order. */
+  private static void publishRange(
+      OdometrySequence sequence, DoubleRingBuffer buffer, int first, int last) {
+    for (int value = first; value <= last; value++) {
+      publish(sequence, buffer, value);
+    }
+  }
+
+  @Test
+  void drainStopsAtTheLatchedIndex() {
+    OdometrySequence sequence = new OdometrySequence();
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8, sequence);
+    double[] output = new double[8];
+    publishRange(sequence, buffer, 1, 3);
+    sequence.latch();
+    publishRange(sequence, buffer, 4, 5); // Published but not latched
+
+    int count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {1.0, 2.0, 3.0}, Arrays.copyOf(output, count));
+    assertEquals(0, buffer.drainTo(output)); // Nothing new until the next latch
+
+    publishRange(sequence, buffer, 6, 6);
+    sequence.latch();
+    count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {4.0, 5.0, 6.0}, Arrays.copyOf(output, count));
+    assertEquals(0, buffer.getDroppedCount());
+  }
+
+  @Test
+  void overfilledRingKeepsTheNewestIntactSamples() {
+    OdometrySequence sequence = new OdometrySequence();
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8, sequence);
+    publishRange(sequence, buffer, 1, 20);
+    sequence.latch();
+
+    // The slot of the next sample may be dirty, so only capacity - 1 samples are intact
+    double[] output = new double[16];
+    int count = buffer.drainTo(output);
+    assertArrayEquals(
+        new double[] {14.0, 15.0, 16.0, 17.0, 18.0, 19.0, 20.0}, Arrays.copyOf(output, count));
+    assertEquals(13, buffer.getDroppedCount());
+  }
+
+  @Test
+  void samplesOverwrittenDuringTheDrainAreDiscarded() {
+    OdometrySequence sequence = new OdometrySequence();
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8, sequence);
+    publishRange(sequence, buffer, 1, 8);
+    sequence.latch();
+    // The producer laps the latched samples before the consumer drains them
+    publishRange(sequence, buffer, 9, 11);
+
+    double[] output = new double[8];
+    int count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {5.0, 6.0, 7.0, 8.0}, Arrays.copyOf(output, count));
+    assertEquals(4, buffer.getDroppedCount());
+    assertEquals(1, sequence.getTornReadCount());
+  }
+
+  @Test
+  void samplesThatDoNotFitTheOutputAreDropped() {
+    OdometrySequence sequence = new OdometrySequence();
+    DoubleRingBuffer buffer = new DoubleRingBuffer(8, sequence);
+    publishRange(sequence, buffer, 1, 5);
+    sequence.latch();
+
+    double[] output = new double[2];
+    int count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {4.0, 5.0}, Arrays.copyOf(output, count));
+    assertEquals(3, buffer.getDroppedCount());
+
+    // Drops accumulate across drains
+    publishRange(sequence, buffer, 6, 9);
+    sequence.latch();
+    count = buffer.drainTo(output);
+    assertArrayEquals(new double[] {8.0, 9.0}, Arrays.copyOf(output, count));
+    assertEquals(5, buffer.getDroppedCount());
+  }
+}
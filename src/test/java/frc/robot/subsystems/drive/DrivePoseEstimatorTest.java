@@ -0,0 +1,215 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link DrivePoseEstimator} produces the same estimates as WPILib's
+ * SwerveDrivePoseEstimator when both are fed the same odometry and vision measurements.
+ */
+class DrivePoseEstimatorTest {
+  private static final double FREQUENCY = 100.0;
+  private static final double DT = 1.0 / FREQUENCY;
+  private static final double TOLERANCE = 1e-6; // Meters and radians
+  private static final Translation2d[] MODULE_TRANSLATIONS =
+      new Translation2d[] {
+        new Translation2d(0.3, 0.3),
+        new Translation2d(0.3, -0.3),
+        new Translation2d(-0.3, 0.3),
+        new Translation2d(-0.3, -0.3)
+      };
+  private static final Pose2d INITIAL_POSE = new Pose2d(2.0, 3.0, Rotation2d.fromDegrees(30.0));
+
+  /** Drives both estimators through the same measurements and compares them after each one. */
+  private static class Harness {
+    private final SwerveDriveKinematics kinematics = new SwerveDriveKinematics(MODULE_TRANSLATIONS);
+    private final Random random;
+    private final SwerveDrivePoseEstimator reference;
+    private final DrivePoseEstimator estimator;
+    private final double[] distances = new double[4];
+    private final Rotation2d[] angles = new Rotation2d[4];
+    private double time = 0.0;
+    private double gyroRad = -1.0; // Deliberately not the heading of the initial pose
+
+    private Harness(long seed) {
+      random = new Random(seed);
+      for (int i = 0; i < 4; i++) {
+        angles[i] = new Rotation2d();
+      }
+      Matrix<N3, N1> stateStdDevs = VecBuilder.fill(0.1, 0.1, 0.1);
+      Matrix<N3, N1> visionStdDevs = VecBuilder.fill(0.9, 0.9, 0.9);
+      reference =
+          new SwerveDrivePoseEstimator(
+              kinematics,
+              new Rotation2d(gyroRad),
+              getPositions(),
+              INITIAL_POSE,
+              stateStdDevs,
+              visionStdDevs);
+      estimator =
+          new DrivePoseEstimator(
+              MODULE_TRANSLATIONS,
+              FREQUENCY,
+              new Rotation2d(gyroRad),
+              getPositions(),
+              INITIAL_POSE,
+              stateStdDevs,
+              visionStdDevs);
+    }
+
+    private SwerveModulePosition[] getPositions() {
+      SwerveModulePosition[] positions = new SwerveModulePosition[4];
+      for (int i = 0; i < 4; i++) {
+        positions[i] = new SwerveModulePosition(distances[i], angles[i]);
+      }
+      return positions;
+    }
+
+    /** Advances one odometry sample along a smooth curve, with some wheel and gyro noise. */
+    private void step() {
+      time += DT;
+      ChassisSpeeds speeds =
+          new ChassisSpeeds(
+              1.5 * Math.sin(0.7 * time), Math.cos(0.3 * time), 1.2 * Math.sin(0.5 * time));
+      SwerveModuleState[] states = kinematics.toSwerveModuleStates(speeds);
+      for (int i = 0; i < 4; i++) {
+        distances[i] +=
+            states[i].speedMetersPerSecond * DT * (1.0 + 0.02 * random.nextGaussian());
+        angles[i] = states[i].angle;
+      }
+      gyroRad += speeds.omegaRadiansPerSecond * DT + 1e-4 * random.nextGaussian();
+
+      Rotation2d gyroAngle = new Rotation2d(gyroRad);
+      reference.updateWithTime(time, gyroAngle, getPositions());
+      estimator.updateWithTime(time, gyroAngle, getPositions());
+      assertMatch();
+    }
+
+    private void steps(int count) {
+      for (int i = 0; i < count; i++) {
+        step();
+      }
+    }
+
+    /** Adds a vision measurement near the current estimate, taken the given time ago. */
+    private void addVision(double ageSecs) {
+      Pose2d current = reference.getEstimatedPosition();
+      Pose2d measurement =
+          new Pose2d(
+              current.getX() + 0.3 * random.nextGaussian(),
+              current.getY() + 0.3 * random.nextGaussian(),
+              current.getRotation().plus(new Rotation2d(0.1 * random.nextGaussian())));
+      double linearStdDev = 0.1 + random.nextDouble();
+      Matrix<N3, N1> stdDevs =
+          VecBuilder.fill(linearStdDev, linearStdDev, 0.2 + random.nextDouble());
+      reference.addVisionMeasurement(measurement, time - ageSecs, stdDevs);
+      estimator.addVisionMeasurement(measurement, time - ageSecs, stdDevs);
+      assertMatch();
+    }
+
+    private void resetPosition(Pose2d pose) {
+      reference.resetPosition(new Rotation2d(gyroRad), getPositions(), pose);
+      estimator.resetPosition(new Rotation2d(gyroRad), getPositions(), pose);
+      assertMatch();
+    }
+
+    private void assertMatch() {
+      Pose2d expected = reference.getEstimatedPosition();
+      Pose2d actual = estimator.getEstimatedPosition();
+      assertEquals(expected.getX(), actual.getX(), TOLERANCE, "X at t=" + time);
+      assertEquals(expected.getY(), actual.getY(), TOLERANCE, "Y at t=" + time);
+      assertEquals(
+          0.0,
+          MathUtil.angleModulus(
+              expected.getRotation().getRadians() - actual.getRotation().getRadians()),
+          TOLERANCE,
+          "Heading at t=" + time);
+      assertEquals(expected.getX(), estimator.getEstimatedX(), TOLERANCE);
+      assertEquals(expected.getY(), estimator.getEstimatedY(), TOLERANCE);
+    }
+  }
+
+  @Test
+  void odometryOnlyMatches() {
+    Harness harness = new Harness(1);
+    harness.steps(1000);
+  }
+
+  @Test
+  void delayedVisionMatches() {
+    Harness harness = new Harness(2);
+    harness.steps(50);
+    for (int i = 0; i < 200; i++) {
+      harness.steps(5);
+      harness.addVision(0.02 + 0.06 * harness.random.nextDouble());
+    }
+  }
+
+  @Test
+  void staleVisionMatches() {
+    Harness harness = new Harness(3);
+
+    // Before any odometry, and older than the odometry history
+    harness.addVision(0.0);
+    harness.steps(300);
+    harness.addVision(2.0);
+    harness.addVision(1.6);
+
+    // Older than the oldest sample but still within the buffer duration of the newest
+    Harness shortHistory = new Harness(4);
+    shortHistory.steps(50);
+    shortHistory.addVision(1.0);
+    shortHistory.steps(50);
+  }
+
+  @Test
+  void outOfOrderVisionMatches() {
+    Harness harness = new Harness(5);
+    harness.steps(100);
+    for (int i = 0; i < 100; i++) {
+      harness.steps(3);
+      harness.addVision(0.05);
+      harness.addVision(0.2); // Older than the last measurement, replaces it
+      harness.addVision(0.05 + 0.3 * harness.random.nextDouble());
+    }
+  }
+
+  @Test
+  void resetPositionMatches() {
+    Harness harness = new Harness(6);
+    harness.steps(100);
+    harness.addVision(0.05);
+    harness.resetPosition(new Pose2d(5.0, 1.0, Rotation2d.fromDegrees(-120.0)));
+    harness.steps(10);
+    harness.addVision(0.5); // From before the reset
+    harness.steps(100);
+  }
+}
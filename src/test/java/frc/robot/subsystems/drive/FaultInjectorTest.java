@@ -0,0 +1,256 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.simulation.SimHooks;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/** Scripted scenarios for {@link FaultProfile} and the {@link FaultInjector} behind it. */
+class FaultInjectorTest {
+  private static final double SAMPLE_PERIOD_SECS = 0.004;
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  private static final double VALUE_SCALE = 10.0; // Each sample's value is its timestamp times this
+
+  @BeforeAll
+  static void setup() {
+    HAL.initialize(500, 0);
+    SimHooks.pauseTiming();
+  }
+
+  @AfterAll
+  static void cleanup() {
+    SimHooks.resumeTiming();
+  }
+
+  /**
+   * Sends one sample every sample period and takes the samples that have arrived at the end of
+   * every loop.
+   *
+   * @return The measurement timestamps taken on each loop.
+   */
+  private static List<double[]> runSamples(FaultInjector<Object> injector, double durationSecs) {
+    List<double[]> loops = new ArrayList<>();
+    double timestamp = 0.0;
+    int samplesPerLoop = (int) Math.round(LOOP_PERIOD_SECS / SAMPLE_PERIOD_SECS);
+    int loopCount = (int) Math.round(durationSecs / LOOP_PERIOD_SECS);
+    for (int loop = 0; loop < loopCount; loop++) {
+      for (int i = 0; i < samplesPerLoop; i++) {
+        timestamp += SAMPLE_PERIOD_SECS;
+        injector.offerSample(timestamp, timestamp * VALUE_SCALE);
+      }
+      int count = injector.countArrivedSamples(timestamp);
+      double[] timestamps = new double[count];
+      double[] values = new double[count];
+      injector.takeSamples(count, timestamps, values);
+      for (int i = 0; i < count; i++) {
+        assertTrue(timestamps[i] <= timestamp, "Sample arrived before it was measured");
+        assertEquals(timestamps[i] * VALUE_SCALE, values[i], 1e-9, "Sample values were mixed up");
+      }
+      loops.add(timestamps);
+    }
+    return loops;
+  }
+
+  @Test
+  void samplesArriveInOrderWithTheirMeasurementTimestamps() {
+    FaultInjector<Object> injector =
+        new FaultInjector<>(FaultProfile.CONGESTED, 1, 0.0, 1, Object::new);
+    List<double[]> loops = runSamples(injector, 10.0);
+
+    double lastTimestamp = Double.NEGATIVE_INFINITY;
+    boolean anyDelayed = false;
+    for (double[] timestamps : loops) {
+      for (double timestamp : timestamps) {
+        assertTrue(timestamp > lastTimestamp, "Samples arrived out of order");
+        // Measurement timestamps are kept, so they stay on the sample grid
+        assertEquals(
+            0.0,
+            Math.IEEEremainder(timestamp, SAMPLE_PERIOD_SECS),
+            1e-9,
+            "Measurement timestamp was changed");
+        lastTimestamp = timestamp;
+      }
+    }
+    for (int i = 1; i < loops.size(); i++) {
+      // The last sample of a loop is only taken on time if the latency is near zero
+      double[] timestamps = loops.get(i);
+      double loopEnd = (i + 1) * LOOP_PERIOD_SECS;
+      if (timestamps.length == 0 || timestamps[timestamps.length - 1] < loopEnd - 1e-9) {
+        anyDelayed = true;
+      }
+    }
+    assertTrue(anyDelayed, "No samples were delayed");
+  }
+
+  @Test
+  void droppedSamplesAreCounted() {
+    FaultInjector<Object> injector =
+        new FaultInjector<>(FaultProfile.NONE.withDropProbability(0.2), 2, 0.0, 1, Object::new);
+    List<double[]> loops = runSamples(injector, 20.0);
+    int sentCount = (int) Math.round(20.0 / SAMPLE_PERIOD_SECS);
+    int receivedCount = loops.stream().mapToInt(timestamps -> timestamps.length).sum();
+
+    assertEquals(sentCount, receivedCount + injector.getDroppedCount());
+    assertEquals(0.2, injector.getDroppedCount() / (double) sentCount, 0.03);
+  }
+
+  @Test
+  void disconnectWindowsAreRelativeToStartup() {
+    FaultProfile profile = FaultProfile.NONE.withDisconnect(1.0, 0.5).withDisconnect(3.0, 0.1);
+    FaultInjector<Object> injector = new FaultInjector<>(profile, 3, 10.0, 1, Object::new);
+
+    assertFalse(injector.isDisconnected(10.99));
+    assertTrue(injector.isDisconnected(11.0));
+    assertTrue(injector.isDisconnected(11.49));
+    assertFalse(injector.isDisconnected(11.5));
+    assertTrue(injector.isDisconnected(13.05));
+    assertFalse(injector.isDisconnected(13.1));
+
+    // Nothing sent while disconnected arrives, and lost samples are counted
+    injector.offerSnapshot("sent while disconnected", 11.2);
+    injector.offerSample(11.2, 1.0);
+    assertNull(injector.pollSnapshot(12.0));
+    assertEquals(0, injector.countArrivedSamples(12.0));
+    assertEquals(1, injector.getDroppedCount());
+  }
+
+  @Test
+  void ringsGrowWithoutReorderingSamples() {
+    // A latency of one second keeps far more samples in flight than the initial capacity
+    FaultInjector<Object> injector =
+        new FaultInjector<>(FaultProfile.NONE.withLatency(1.0, 0.0), 7, 0.0, 2, Object::new);
+    for (int i = 0; i < 10; i++) {
+      injector.offerSample(0.0, 0.0, 0.0);
+    }
+    // Start the ring part way through its storage, so it is wrapped around when it grows
+    injector.takeSamples(
+        injector.countArrivedSamples(1.0), new double[10], new double[10], new double[10]);
+    for (int i = 1; i <= 100; i++) {
+      injector.offerSample(i * 0.01, i, -i);
+    }
+    int count = injector.countArrivedSamples(2.0);
+    double[] timestamps = new double[count];
+    double[] values0 = new double[count];
+    double[] values1 = new double[count];
+    injector.takeSamples(count, timestamps, values0, values1);
+
+    assertEquals(100, count);
+    for (int i = 0; i < count; i++) {
+      assertEquals((i + 1) * 0.01, timestamps[i], 1e-9);
+      assertEquals(i + 1, values0[i], 1e-9);
+      assertEquals(-(i + 1), values1[i], 1e-9);
+    }
+  }
+
+  @Test
+  void snapshotsAreReusedOnceSuperseded() {
+    FaultInjector<Object> injector = new FaultInjector<>(FaultProfile.NONE, 8, 0.0, 1, Object::new);
+    Object first = injector.acquireSnapshot();
+    injector.offerSnapshot(first, 0.0);
+    assertSame(first, injector.pollSnapshot(0.0));
+
+    // The reported snapshot is not handed out again until a newer one is reported
+    Object second = injector.acquireSnapshot();
+    assertNotSame(first, second);
+    injector.offerSnapshot(second, 0.02);
+    assertSame(second, injector.pollSnapshot(0.02));
+    assertSame(first, injector.acquireSnapshot());
+  }
+
+  /** A gyro turning at a constant rate, with one odometry sample per loop. */
+  private static class RampGyroIO implements GyroIO {
+    private double yawRad = 0.0;
+
+    @Override
+    public void updateInputs(GyroIOInputs inputs) {
+      yawRad += 0.01;
+      inputs.connected = true;
+      inputs.yawPosition = new Rotation2d(yawRad);
+      inputs.yawVelocityRadPerSec = 0.01 / LOOP_PERIOD_SECS;
+      inputs.odometryYawTimestamps = new double[] {Timer.getFPGATimestamp()};
+      inputs.odometryYawPositionsRad = new double[] {yawRad};
+    }
+  }
+
+  @Test
+  void valuesAreHeldAndDisconnectedInsideWindows() {
+    FaultProfile profile = FaultProfile.NONE.withDisconnect(1.0, 0.5);
+    GyroIO io = new GyroIOWithFaults(new RampGyroIO(), profile, 4);
+    GyroIO.GyroIOInputs inputs = new GyroIO.GyroIOInputs();
+    double startTimestamp = Timer.getFPGATimestamp();
+
+    double lastConnectedYawRad = Double.NaN;
+    for (int loop = 0; loop < Math.round(2.0 / LOOP_PERIOD_SECS); loop++) {
+      SimHooks.stepTiming(LOOP_PERIOD_SECS);
+      io.updateInputs(inputs);
+      double secsSinceStartup = Timer.getFPGATimestamp() - startTimestamp;
+
+      if (profile.isDisconnected(secsSinceStartup)) {
+        assertFalse(inputs.connected, "Connected at " + secsSinceStartup);
+        assertEquals(lastConnectedYawRad, inputs.yawPosition.getRadians(), 1e-9, "Yaw not held");
+        assertEquals(0, inputs.odometryYawTimestamps.length, "Samples arrived while disconnected");
+      } else {
+        assertTrue(inputs.connected, "Disconnected at " + secsSinceStartup);
+        assertEquals(1, inputs.odometryYawTimestamps.length);
+        lastConnectedYawRad = inputs.yawPosition.getRadians();
+      }
+    }
+    assertEquals(0.5 / LOOP_PERIOD_SECS, inputs.odometryYawDroppedSamples, 1.0);
+  }
+
+  @Test
+  void sameSeedGivesSameOutput() {
+    FaultProfile profile = FaultProfile.INTERMITTENT.withDropProbability(0.1);
+    FaultInjector<Object> first = new FaultInjector<>(profile, 5, 0.0, 1, Object::new);
+    FaultInjector<Object> second = new FaultInjector<>(profile, 5, 0.0, 1, Object::new);
+    List<double[]> firstLoops = runSamples(first, 10.0);
+    List<double[]> secondLoops = runSamples(second, 10.0);
+
+    assertEquals(firstLoops.size(), secondLoops.size());
+    for (int i = 0; i < firstLoops.size(); i++) {
+      assertArrayEquals(firstLoops.get(i), secondLoops.get(i), "Loop " + i);
+    }
+    assertEquals(first.getDroppedCount(), second.getDroppedCount());
+
+    FaultInjector<Object> other = new FaultInjector<>(profile, 6, 0.0, 1, Object::new);
+    List<double[]> otherLoops = runSamples(other, 10.0);
+    boolean anyDifferent = false;
+    for (int i = 0; i < firstLoops.size(); i++) {
+      anyDifferent |= !Arrays.equals(firstLoops.get(i), otherLoops.get(i));
+    }
+    assertTrue(anyDifferent, "A different seed gave the same output");
+  }
+
+  @Test
+  void presetsAreFoundByName() {
+    assertEquals(FaultProfile.TYPICAL, FaultProfile.forName("Typical"));
+    assertEquals("intermittent", FaultProfile.forName("intermittent").getName());
+  }
+}
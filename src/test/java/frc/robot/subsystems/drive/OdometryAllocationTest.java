@@ -0,0 +1,157 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.wpilibj.simulation.DriverStationSim;
+import frc.robot.generated.TunerConstants;
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the odometry path through {@link Module} and {@link Drive} allocates nothing once
+ * warmed up. The IO replays synthetic samples into reused arrays, so any allocation measured comes
+ * from the code under test rather than from the IO.
+ */
+class OdometryAllocationTest {
+  private static final int SAMPLE_COUNT = 5;
+  private static final double LOOP_PERIOD_SECS = 0.02;
+  private static final double SAMPLE_PERIOD_SECS = LOOP_PERIOD_SECS / SAMPLE_COUNT;
+  private static final int WARMUP_LOOPS = 2000;
+  private static final int MEASURED_LOOPS = 1000;
+
+  private static double loopTimestamp = 0.0;
+
+  /** Replays a module driving at a constant speed and heading, without allocating. */
+  private static class ReplayModuleIO implements ModuleIO {
+    private static final Rotation2d TURN_POSITION = Rotation2d.fromDegrees(30.0);
+    private static final double DRIVE_VELOCITY_RAD_PER_SEC = 40.0;
+
+    private final SampleArrays.SwapBuffer timestampBuffer = new SampleArrays.SwapBuffer();
+    private final SampleArrays.SwapBuffer drivePositionBuffer = new SampleArrays.SwapBuffer();
+    private final SampleArrays.SwapBuffer turnPositionBuffer = new SampleArrays.SwapBuffer();
+    private double drivePositionRad = 0.0;
+
+    @Override
+    public void updateInputs(ModuleIOInputs inputs) {
+      double[] timestamps = timestampBuffer.next(SAMPLE_COUNT);
+      double[] drivePositions = drivePositionBuffer.next(SAMPLE_COUNT);
+      double[] turnPositions = turnPositionBuffer.next(SAMPLE_COUNT);
+      for (int i = 0; i < SAMPLE_COUNT; i++) {
+        timestamps[i] = loopTimestamp - (SAMPLE_COUNT - 1 - i) * SAMPLE_PERIOD_SECS;
+        drivePositionRad += DRIVE_VELOCITY_RAD_PER_SEC * SAMPLE_PERIOD_SECS;
+        drivePositions[i] = drivePositionRad;
+        turnPositions[i] = TURN_POSITION.getRadians();
+      }
+      inputs.odometryTimestamps = timestamps;
+      inputs.odometryDrivePositionsRad = drivePositions;
+      inputs.odometryTurnPositionsRad = turnPositions;
+      inputs.odometryDriveTimestamps = timestamps;
+      inputs.odometryTurnTimestamps = timestamps;
+
+      inputs.driveConnected = true;
+      inputs.drivePositionRad = drivePositionRad;
+      inputs.driveVelocityRadPerSec = DRIVE_VELOCITY_RAD_PER_SEC;
+      inputs.turnConnected = true;
+      inputs.turnEncoderConnected = true;
+      inputs.turnAbsolutePosition = TURN_POSITION;
+      inputs.turnPosition = TURN_POSITION;
+    }
+  }
+
+  /** Replays a gyro turning at a constant rate, offset in phase from the modules. */
+  private static class ReplayGyroIO implements GyroIO {
+    private static final Rotation2d YAW_POSITION = new Rotation2d();
+    private static final double YAW_VELOCITY_RAD_PER_SEC = 0.5;
+
+    private final SampleArrays.SwapBuffer yawTimestampBuffer = new SampleArrays.SwapBuffer();
+    private final SampleArrays.SwapBuffer yawPositionBuffer = new SampleArrays.SwapBuffer();
+    private double yawRad = 0.0;
+
+    @Override
+    public void updateInputs(GyroIOInputs inputs) {
+      double[] timestamps = yawTimestampBuffer.next(SAMPLE_COUNT);
+      double[] yaws = yawPositionBuffer.next(SAMPLE_COUNT);
+      for (int i = 0; i < SAMPLE_COUNT; i++) {
+        timestamps[i] = loopTimestamp - (SAMPLE_COUNT - 1.5 - i) * SAMPLE_PERIOD_SECS;
+        yawRad += YAW_VELOCITY_RAD_PER_SEC * SAMPLE_PERIOD_SECS;
+        yaws[i] = yawRad;
+      }
+      inputs.odometryYawTimestamps = timestamps;
+      inputs.odometryYawPositionsRad = yaws;
+      inputs.connected = true;
+      inputs.yawPosition = YAW_POSITION;
+      inputs.yawVelocityRadPerSec = YAW_VELOCITY_RAD_PER_SEC;
+    }
+  }
+
+  @BeforeAll
+  static void setup() {
+    HAL.initialize(500, 0);
+    DriverStationSim.setEnabled(true);
+    DriverStationSim.notifyNewData();
+  }
+
+  /** Returns the bytes allocated by this thread while running the given number of loops. */
+  private static long measureAllocatedBytes(Runnable loop, int loops) {
+    var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+
+    // Subtract whatever the measurement itself allocates
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    long overhead = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+    before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < loops; i++) {
+      loop.run();
+    }
+    return threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+  }
+
+  private static Runnable withClock(Runnable periodic) {
+    return () -> {
+      loopTimestamp += LOOP_PERIOD_SECS;
+      periodic.run();
+    };
+  }
+
+  @Test
+  void modulePeriodicDoesNotAllocate() {
+    Module module = new Module(new ReplayModuleIO(), 0, TunerConstants.FrontLeft);
+    Runnable loop = withClock(module::periodic);
+    measureAllocatedBytes(loop, WARMUP_LOOPS);
+    assertEquals(0, measureAllocatedBytes(loop, MEASURED_LOOPS), "Bytes allocated by Module");
+  }
+
+  @Test
+  void drivePeriodicDoesNotAllocate() {
+    Drive drive =
+        new Drive(
+            new ReplayGyroIO(),
+            new ReplayModuleIO(),
+            new ReplayModuleIO(),
+            new ReplayModuleIO(),
+            new ReplayModuleIO());
+    Runnable loop = withClock(drive::periodic);
+    measureAllocatedBytes(loop, WARMUP_LOOPS);
+    assertEquals(0, measureAllocatedBytes(loop, MEASURED_LOOPS), "Bytes allocated by Drive");
+  }
+}
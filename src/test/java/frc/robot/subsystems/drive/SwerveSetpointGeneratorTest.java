@@ -0,0 +1,108 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static edu.wpi.first.units.Units.MetersPerSecond;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import edu.wpi.first.math.system.plant.DCMotor;
+import frc.robot.generated.TunerConstants;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Steps {@link SwerveSetpointGenerator} through large speed steps and reversals, and checks that
+ * every module setpoint stays within the drive acceleration and steering velocity limits.
+ */
+class SwerveSetpointGeneratorTest {
+  private static final double DT = 0.02;
+  private static final double STOPPED_SPEED = 0.05; // Below this, modules may steer freely
+
+  private final double maxSpeed = TunerConstants.kSpeedAt12Volts.in(MetersPerSecond);
+  private final double maxAccel = Drive.WHEEL_COF * 9.81; // Wheel friction, the hard cap
+  private final double maxSteerVelocity =
+      DCMotor.getKrakenX60Foc(1).freeSpeedRadPerSec / TunerConstants.FrontLeft.SteerMotorGearRatio;
+
+  private final SwerveSetpointGenerator generator =
+      new SwerveSetpointGenerator(
+          Drive.getModuleTranslations(),
+          TunerConstants.FrontLeft,
+          maxSpeed,
+          DCMotor.getKrakenX60Foc(1),
+          DCMotor.getKrakenX60Foc(1),
+          Drive.ROBOT_MASS_KG,
+          Drive.WHEEL_COF);
+  private final double[] previousSpeeds = new double[4];
+  private final double[] previousAngles = new double[4];
+
+  /** Holds the desired speeds for the given number of loops, checking every setpoint. */
+  private void hold(ChassisSpeeds desiredSpeeds, int loops) {
+    for (int loop = 0; loop < loops; loop++) {
+      SwerveModuleState[] states = generator.generate(desiredSpeeds, DT);
+
+      for (int i = 0; i < 4; i++) {
+        double speed = states[i].speedMetersPerSecond;
+        double angle = states[i].angle.getRadians();
+        assertTrue(speed <= maxSpeed + 1e-9, "Module " + i + " above max speed: " + speed);
+
+        // A heading change of more than 90 degrees is followed by reversing the wheel
+        double angleChange = Math.abs(MathUtil.angleModulus(angle - previousAngles[i]));
+        boolean moving = speed > STOPPED_SPEED && previousSpeeds[i] > STOPPED_SPEED;
+        boolean reversed = moving && angleChange > Math.PI / 2.0;
+        double speedChange =
+            reversed ? speed + previousSpeeds[i] : Math.abs(speed - previousSpeeds[i]);
+        assertTrue(
+            speedChange <= maxAccel * DT + 1e-9,
+            "Module " + i + " speed changed by " + speedChange + " in one loop");
+        if (moving) {
+          double steerChange = reversed ? Math.PI - angleChange : angleChange;
+          assertTrue(
+              steerChange <= maxSteerVelocity * DT + 1e-9,
+              "Module " + i + " steered by " + steerChange + " rad in one loop");
+        }
+
+        previousSpeeds[i] = speed;
+        previousAngles[i] = angle;
+      }
+    }
+  }
+
+  @Test
+  void largeStepsAndReversalsStayWithinLimits() {
+    hold(new ChassisSpeeds(maxSpeed, 0.0, 0.0), 50);
+    hold(new ChassisSpeeds(-maxSpeed, 0.0, 0.0), 50); // Full reversal
+    hold(new ChassisSpeeds(0.0, maxSpeed, 0.0), 50); // Sideways at speed
+    hold(new ChassisSpeeds(0.0, 0.0, 10.0), 50); // Spin in place
+    hold(new ChassisSpeeds(0.0, 0.0, -10.0), 50); // Reverse the spin
+    hold(new ChassisSpeeds(3.0, 3.0, -8.0), 50);
+    hold(new ChassisSpeeds(-3.0, -3.0, 8.0), 50);
+    hold(new ChassisSpeeds(), 50);
+  }
+
+  @Test
+  void randomStepsStayWithinLimits() {
+    Random random = new Random(1468);
+    for (int i = 0; i < 500; i++) {
+      hold(
+          new ChassisSpeeds(
+              (random.nextDouble() * 2.0 - 1.0) * maxSpeed,
+              (random.nextDouble() * 2.0 - 1.0) * maxSpeed,
+              (random.nextDouble() * 2.0 - 1.0) * 12.0),
+          1 + random.nextInt(10));
+    }
+  }
+}